@@ -0,0 +1,128 @@
+package org.jruby.puma.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import org.jruby.RubyString;
+import org.jruby.puma.Http11;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures Puma::HttpParser#execute over a few request shapes, fed to the
+ * parser the way Puma::Client does: each read is appended to the request
+ * buffer and the parser resumes from the bytes it has already consumed.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Http11Benchmark {
+    /**
+     * small_get: a typical browser GET.
+     * many_long_headers: 30 headers of 2000 bytes each, the request side of
+     * test/rackup/many_long_headers.ru.
+     */
+    @Param({"small_get", "many_long_headers"})
+    public String corpus;
+
+    /**
+     * How many socket reads the request arrives in; anything above 1 is a
+     * slow client whose headers trickle in.
+     */
+    @Param({"1", "8"})
+    public int reads;
+
+    private Ruby runtime;
+    private Http11 parser;
+    private ByteList[] pieces;
+
+    @Setup
+    public void setup() throws Exception {
+        runtime = PumaRuntime.newRuntime();
+        parser = (Http11) runtime.getModule("Puma").getClass("HttpParser")
+            .newInstance(runtime.getCurrentContext(), IRubyObject.NULL_ARRAY, Block.NULL_BLOCK);
+
+        byte[] request = request(corpus);
+        pieces = new ByteList[reads];
+        int size = (request.length + reads - 1) / reads;
+        for (int i = 0; i < reads; i++) {
+            int from = Math.min(i * size, request.length);
+            int to = Math.min(from + size, request.length);
+            pieces[i] = new ByteList(request, from, to - from);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        runtime.tearDown(false);
+    }
+
+    @Benchmark
+    public RubyHash execute() {
+        RubyHash env = RubyHash.newHash(runtime);
+        RubyString buffer = RubyString.newStringLight(runtime, 0);
+        IRubyObject nread = runtime.newFixnum(0);
+
+        parser.reset();
+        for (ByteList piece : pieces) {
+            buffer.cat(piece);
+            nread = parser.execute(env, buffer, nread);
+        }
+
+        if (!parser.is_finished().isTrue()) {
+            throw new IllegalStateException("request was not fully parsed");
+        }
+        return env;
+    }
+
+    static byte[] request(String corpus) {
+        StringBuilder req = new StringBuilder();
+        switch (corpus) {
+            case "small_get":
+                req.append("GET /products/42?color=blue&size=m HTTP/1.1\r\n")
+                   .append("Host: www.example.com\r\n")
+                   .append("User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:74.0) Gecko/20100101 Firefox/74.0\r\n")
+                   .append("Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n")
+                   .append("Accept-Language: en-US,en;q=0.5\r\n")
+                   .append("Accept-Encoding: gzip, deflate, br\r\n")
+                   .append("Connection: keep-alive\r\n")
+                   .append("Cookie: _session_id=2b3a7c0e5f1d4e6a9c8b7a6f5e4d3c2b\r\n")
+                   .append("\r\n");
+                break;
+            case "many_long_headers":
+                Random random = new Random(42);
+                req.append("GET / HTTP/1.1\r\nHost: www.example.com\r\n");
+                for (int i = 0; i < 30; i++) {
+                    req.append("X-My-Header-").append(i).append(": ");
+                    for (int j = 0; j < 1000; j++) {
+                        req.append(String.format("%02x", random.nextInt(256)));
+                    }
+                    req.append("\r\n");
+                }
+                req.append("\r\n");
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown corpus: " + corpus);
+        }
+        return ByteList.plain(req);
+    }
+}
@@ -0,0 +1,232 @@
+package org.jruby.puma.benchmarks;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyClass;
+import org.jruby.RubyModule;
+import org.jruby.RubyString;
+import org.jruby.puma.MiniSSL;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the JRuby Puma::MiniSSL::Engine against an in-memory JSSE client,
+ * driving it through inject/read/write/extract exactly like
+ * Puma::MiniSSL::Socket does, using examples/puma/keystore.jks.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MiniSSLBenchmark {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /** Size of the plaintext moved per invocation of the throughput benchmarks */
+    @Param({"1024", "16384"})
+    public int payloadSize;
+
+    private Ruby runtime;
+    private RubyClass engine;
+    private IRubyObject context;
+    private SSLContext clientContext;
+
+    private MiniSSL server;
+    private SSLEngine client;
+    private ByteBuffer toServer;
+    private ByteBuffer toClient;
+    private ByteBuffer clientApp;
+    private ByteBuffer payload;
+    private RubyString payloadString;
+    private RubyString[] responseParts;
+    private RubyArray responseArray;
+
+    @Setup
+    public void setup() throws Exception {
+        runtime = PumaRuntime.newRuntime();
+        String keystore = new File(PumaRuntime.root(), "examples/puma/keystore.jks").getPath();
+        context = runtime.evalScriptlet(
+            "require 'puma/minissl'\n" +
+            "ctx = Puma::MiniSSL::Context.new\n" +
+            "ctx.keystore = '" + keystore + "'\n" +
+            "ctx.keystore_pass = 'blahblah'\n" +
+            "ctx.verify_mode = Puma::MiniSSL::VERIFY_NONE\n" +
+            "ctx");
+        engine = ((RubyModule) runtime.getModule("Puma").getConstant("MiniSSL")).getClass("Engine");
+
+        clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, new TrustManager[] { new TrustEverything() }, null);
+
+        byte[] bytes = new byte[payloadSize];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) ('a' + i % 26);
+        payload = ByteBuffer.wrap(bytes);
+        payloadString = RubyString.newString(runtime, new ByteList(bytes, false));
+
+        // a response head followed by the payload split into four body parts
+        responseParts = new RubyString[5];
+        responseParts[0] = RubyString.newString(runtime,
+            "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: " + payloadSize + "\r\n\r\n");
+        for (int i = 0; i < 4; i++) {
+            int from = payloadSize * i / 4, to = payloadSize * (i + 1) / 4;
+            responseParts[i + 1] = RubyString.newString(runtime, new ByteList(bytes, from, to - from, false));
+        }
+        responseArray = RubyArray.newArray(runtime, responseParts);
+    }
+
+    /** A connected engine pair for the throughput benchmarks */
+    @Setup(Level.Iteration)
+    public void connect() throws Exception {
+        handshake();
+    }
+
+    @TearDown
+    public void tearDown() {
+        runtime.tearDown(false);
+    }
+
+    /** Cost of a full handshake, including creating the server engine */
+    @Benchmark
+    public MiniSSL handshake() throws Exception {
+        server = (MiniSSL) engine.callMethod(runtime.getCurrentContext(), "server", context);
+
+        client = clientContext.createSSLEngine();
+        client.setUseClientMode(true);
+        int packetSize = client.getSession().getPacketBufferSize();
+        toServer = ByteBuffer.allocate(packetSize);
+        toClient = ByteBuffer.allocate(packetSize * 4);
+        clientApp = ByteBuffer.allocate(Math.max(payloadSize, client.getSession().getApplicationBufferSize()) * 2);
+
+        client.beginHandshake();
+        while (true) {
+            switch (client.getHandshakeStatus()) {
+                case NEED_WRAP:
+                    toServer.clear();
+                    client.wrap(EMPTY, toServer);
+                    toServer.flip();
+                    server.inject(bytes(toServer));
+                    server.read();
+                    drainServer();
+                    break;
+                case NEED_UNWRAP:
+                    toClient.flip();
+                    SSLEngineResult res = client.unwrap(toClient, clientApp);
+                    toClient.compact();
+                    if (res.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        throw new IllegalStateException("handshake stalled waiting on the server");
+                    }
+                    break;
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = client.getDelegatedTask()) != null) task.run();
+                    break;
+                default:
+                    clientApp.clear();
+                    return server;
+            }
+        }
+    }
+
+    /** Server side encryption: Socket#write's write/extract loop */
+    @Benchmark
+    public int writeExtract() throws Exception {
+        int written = 0;
+        IRubyObject enc;
+
+        server.write(payloadString);
+        while (!(enc = server.extract()).isNil()) {
+            written += ((RubyString) enc).size();
+        }
+        return written;
+    }
+
+    /** A multi part response written the way Server#fast_write does it, one part at a time */
+    @Benchmark
+    public int writeExtractParts() throws Exception {
+        int written = 0;
+        IRubyObject enc;
+
+        for (RubyString part : responseParts) {
+            server.write(part);
+            while (!(enc = server.extract()).isNil()) {
+                written += ((RubyString) enc).size();
+            }
+        }
+        return written;
+    }
+
+    /** The same response encrypted with a single Engine#write_all */
+    @Benchmark
+    public int writeAll() throws Exception {
+        return ((RubyString) server.write_all(runtime.getCurrentContext(), responseArray)).size();
+    }
+
+    /**
+     * Server side decryption: Socket#read_nonblock's inject/read loop. The
+     * client has to encrypt fresh records every time, so this includes the
+     * cost of one JSSE wrap per record.
+     */
+    @Benchmark
+    public int injectRead() throws Exception {
+        int read = 0;
+
+        payload.rewind();
+        while (payload.hasRemaining()) {
+            toServer.clear();
+            client.wrap(payload, toServer);
+            toServer.flip();
+            server.inject(bytes(toServer));
+        }
+
+        IRubyObject plain;
+        while (!(plain = server.read()).isNil()) {
+            read += ((RubyString) plain).size();
+        }
+        return read;
+    }
+
+    private void drainServer() throws Exception {
+        IRubyObject out;
+        while (!(out = server.extract()).isNil()) {
+            ByteList bytes = ((RubyString) out).getByteList();
+            toClient.put(bytes.unsafeBytes(), bytes.begin(), bytes.realSize());
+        }
+    }
+
+    private RubyString bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return RubyString.newString(runtime, new ByteList(bytes, false));
+    }
+
+    private static class TrustEverything implements X509TrustManager {
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+        public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
+    }
+}
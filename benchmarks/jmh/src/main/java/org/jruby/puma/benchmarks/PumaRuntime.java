@@ -0,0 +1,35 @@
+package org.jruby.puma.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.jruby.Ruby;
+import org.jruby.RubyInstanceConfig;
+
+import puma.PumaHttp11Service;
+
+/**
+ * Boots an in-process JRuby runtime with the puma_http11 extension loaded
+ * the same way <code>require 'puma/puma_http11'</code> would.
+ */
+final class PumaRuntime {
+    private PumaRuntime() {}
+
+    /**
+     * The puma checkout the benchmarks read fixtures and lib/ from. Defaults to
+     * the repository root when run from benchmarks/jmh.
+     */
+    static File root() {
+        return new File(System.getProperty("puma.root", "../..")).getAbsoluteFile();
+    }
+
+    static Ruby newRuntime() throws IOException {
+        RubyInstanceConfig config = new RubyInstanceConfig();
+        config.setLoadPaths(Collections.singletonList(new File(root(), "lib").getPath()));
+
+        Ruby runtime = Ruby.newInstance(config);
+        new PumaHttp11Service().basicLoad(runtime);
+        return runtime;
+    }
+}
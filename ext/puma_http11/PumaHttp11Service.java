@@ -5,13 +5,17 @@ import java.io.IOException;
 import org.jruby.Ruby;
 import org.jruby.runtime.load.BasicLibraryService;
 
+import org.jruby.puma.ChunkedDecoder;
 import org.jruby.puma.Http11;
 import org.jruby.puma.MiniSSL;
+import org.jruby.puma.VirtualThreads;
 
 public class PumaHttp11Service implements BasicLibraryService {
     public boolean basicLoad(final Ruby runtime) throws IOException {
         Http11.createHttp11(runtime);
+        ChunkedDecoder.createChunkedDecoder(runtime);
         MiniSSL.createMiniSSL(runtime);
+        VirtualThreads.createVirtualThreads(runtime);
         return true;
     }
 }
@@ -0,0 +1,184 @@
+#include "chunked_decoder.h"
+
+enum {
+  CHUNK_ERROR = -1,
+  CHUNK_SIZE_START = 0,
+  CHUNK_SIZE,
+  CHUNK_EXTENSION,
+  CHUNK_SIZE_LF,
+  CHUNK_DATA,
+  CHUNK_DATA_CR,
+  CHUNK_DATA_LF,
+  TRAILER_START,
+  TRAILER,
+  TRAILER_LF,
+  LAST_LF,
+  CHUNK_DONE
+};
+
+/* refuse sizes that would overflow on the next digit */
+#define MAX_CHUNK_SIZE (((size_t) -1) >> 4)
+
+static int hex_value(char c)
+{
+  if (c >= '0' && c <= '9') return c - '0';
+  if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+  if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+  return -1;
+}
+
+void puma_chunked_decoder_init(puma_chunked_decoder *decoder)
+{
+  decoder->state = CHUNK_SIZE_START;
+  decoder->remaining = 0;
+  decoder->line_length = 0;
+}
+
+/**
+ * Decodes len bytes of buffer, calling on_data for every run of payload.
+ * Returns how many bytes were consumed, which is less than len only when
+ * the body ended (or turned out invalid) before the end of buffer. Whatever
+ * follows the body belongs to the next request.
+ */
+size_t puma_chunked_decoder_execute(puma_chunked_decoder *decoder, const char *buffer,
+                                    size_t len, chunk_data_cb on_data, void *data)
+{
+  const char *p = buffer;
+  const char *pe = buffer + len;
+  int state = decoder->state;
+  int digit;
+
+  while (p < pe && state != CHUNK_DONE && state != CHUNK_ERROR) {
+    switch (state) {
+    case CHUNK_SIZE_START:
+      if ((digit = hex_value(*p)) < 0) {
+        state = CHUNK_ERROR;
+        continue;
+      }
+      decoder->remaining = digit;
+      decoder->line_length = 1;
+      state = CHUNK_SIZE;
+      break;
+
+    case CHUNK_SIZE:
+      if ((digit = hex_value(*p)) >= 0) {
+        if (decoder->remaining > MAX_CHUNK_SIZE) {
+          state = CHUNK_ERROR;
+          continue;
+        }
+        decoder->remaining = (decoder->remaining << 4) | digit;
+      } else if (*p == '\r') {
+        state = CHUNK_SIZE_LF;
+      } else if (*p == '\n') {
+        state = CHUNK_ERROR;
+        continue;
+      } else {
+        state = CHUNK_EXTENSION;
+      }
+      decoder->line_length++;
+      break;
+
+    case CHUNK_EXTENSION:
+      if (*p == '\r') {
+        state = CHUNK_SIZE_LF;
+      } else if (*p == '\n') {
+        state = CHUNK_ERROR;
+        continue;
+      }
+      decoder->line_length++;
+      break;
+
+    case CHUNK_SIZE_LF:
+      if (*p != '\n') {
+        state = CHUNK_ERROR;
+        continue;
+      }
+      state = decoder->remaining == 0 ? TRAILER_START : CHUNK_DATA;
+      break;
+
+    case CHUNK_DATA: {
+      size_t available = pe - p;
+      size_t length = available < decoder->remaining ? available : decoder->remaining;
+
+      on_data(data, p, length);
+      decoder->remaining -= length;
+      if (decoder->remaining == 0) {
+        state = CHUNK_DATA_CR;
+      }
+      p += length;
+      continue;
+    }
+
+    case CHUNK_DATA_CR:
+      if (*p != '\r') {
+        state = CHUNK_ERROR;
+        continue;
+      }
+      state = CHUNK_DATA_LF;
+      break;
+
+    case CHUNK_DATA_LF:
+      if (*p != '\n') {
+        state = CHUNK_ERROR;
+        continue;
+      }
+      state = CHUNK_SIZE_START;
+      break;
+
+    case TRAILER_START:
+      if (*p == '\r') {
+        state = LAST_LF;
+      } else {
+        /* trailer fields aren't passed on to the app, just skipped */
+        decoder->line_length = 1;
+        state = TRAILER;
+      }
+      break;
+
+    case TRAILER:
+      if (*p == '\r') {
+        state = TRAILER_LF;
+      } else if (*p == '\n') {
+        state = CHUNK_ERROR;
+        continue;
+      }
+      decoder->line_length++;
+      break;
+
+    case TRAILER_LF:
+      if (*p != '\n') {
+        state = CHUNK_ERROR;
+        continue;
+      }
+      state = TRAILER_START;
+      break;
+
+    case LAST_LF:
+      if (*p != '\n') {
+        state = CHUNK_ERROR;
+        continue;
+      }
+      state = CHUNK_DONE;
+      break;
+    }
+
+    if (decoder->line_length > CHUNKED_MAX_LINE_LENGTH) {
+      state = CHUNK_ERROR;
+      continue;
+    }
+    p++;
+  }
+
+  decoder->state = state;
+  return p - buffer;
+}
+
+int puma_chunked_decoder_has_error(puma_chunked_decoder *decoder)
+{
+  return decoder->state == CHUNK_ERROR;
+}
+
+int puma_chunked_decoder_is_finished(puma_chunked_decoder *decoder)
+{
+  return decoder->state == CHUNK_DONE;
+}
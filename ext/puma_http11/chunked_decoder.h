@@ -0,0 +1,32 @@
+#ifndef chunked_decoder_h
+#define chunked_decoder_h
+
+#include <sys/types.h>
+
+#if defined(_WIN32)
+#include <stddef.h>
+#endif
+
+/* Longest chunk size line or trailer line accepted, extensions included */
+#define CHUNKED_MAX_LINE_LENGTH 4096
+
+typedef void (*chunk_data_cb)(void *data, const char *at, size_t length);
+
+/**
+ * Incremental decoder for a chunked transfer-encoding body. Feed it the raw
+ * bytes as they arrive, it calls on_data for each run of payload and keeps
+ * its place between calls, so nothing has to be buffered up front.
+ */
+typedef struct puma_chunked_decoder {
+  int state;
+  size_t remaining;
+  size_t line_length;
+} puma_chunked_decoder;
+
+void puma_chunked_decoder_init(puma_chunked_decoder *decoder);
+size_t puma_chunked_decoder_execute(puma_chunked_decoder *decoder, const char *buffer,
+                                    size_t len, chunk_data_cb on_data, void *data);
+int puma_chunked_decoder_has_error(puma_chunked_decoder *decoder);
+int puma_chunked_decoder_is_finished(puma_chunked_decoder *decoder);
+
+#endif
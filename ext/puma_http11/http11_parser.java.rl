@@ -12,44 +12,44 @@ public class Http11Parser {
 
   machine puma_parser;
 
-  action mark {parser.mark = fpc; }
+  action mark {parser.mark = fpc - begin; }
 
-  action start_field { parser.field_start = fpc; }
+  action start_field { parser.field_start = fpc - begin; }
   action snake_upcase_field { /* FIXME stub */ }
   action write_field { 
-    parser.field_len = fpc-parser.field_start;
+    parser.field_len = fpc-begin-parser.field_start;
   }
 
-  action start_value { parser.mark = fpc; }
+  action start_value { parser.mark = fpc - begin; }
   action write_value {
-    Http11.http_field(runtime, parser.data, parser.buffer, parser.field_start, parser.field_len, parser.mark, fpc-parser.mark);
+    http.http_field(runtime, parser.data, parser.buffer, parser.field_start, parser.field_len, parser.mark, fpc-begin-parser.mark);
   }
   action request_method {
-    Http11.request_method(runtime, parser.data, parser.buffer, parser.mark, fpc-parser.mark);
+    Http11.request_method(runtime, parser.data, parser.buffer, parser.mark, fpc-begin-parser.mark);
   }
   action request_uri {
-    Http11.request_uri(runtime, parser.data, parser.buffer, parser.mark, fpc-parser.mark);
+    http.request_uri(runtime, parser.data, parser.buffer, parser.mark, fpc-begin-parser.mark);
   }
   action fragment {
-    Http11.fragment(runtime, parser.data, parser.buffer, parser.mark, fpc-parser.mark);
+    http.fragment(runtime, parser.data, parser.buffer, parser.mark, fpc-begin-parser.mark);
   }
   
-  action start_query {parser.query_start = fpc; }
+  action start_query {parser.query_start = fpc - begin; }
   action query_string {
-    Http11.query_string(runtime, parser.data, parser.buffer, parser.query_start, fpc-parser.query_start);
+    http.query_string(runtime, parser.data, parser.buffer, parser.query_start, fpc-begin-parser.query_start);
   }
 
   action http_version {
-    Http11.http_version(runtime, parser.data, parser.buffer, parser.mark, fpc-parser.mark);
+    http.http_version(runtime, parser.data, parser.buffer, parser.mark, fpc-begin-parser.mark);
   }
 
   action request_path {
-    Http11.request_path(runtime, parser.data, parser.buffer, parser.mark, fpc-parser.mark);
+    http.request_path(runtime, parser.data, parser.buffer, parser.mark, fpc-begin-parser.mark);
   }
 
   action done { 
-    parser.body_start = fpc + 1;
-    http.header_done(runtime, parser.data, parser.buffer, fpc + 1, pe - fpc - 1);
+    parser.body_start = fpc - begin + 1;
+    http.header_done(runtime, parser.data, parser.buffer, fpc - begin + 1, pe - fpc - 1);
     fbreak;
   }
 
@@ -103,17 +103,19 @@ public class Http11Parser {
      int len = buffer.length();
      assert off<=len : "offset past end of buffer";
 
-     p = off;
-     pe = len;
-     // get a copy of the bytes, since it may not start at 0
-     // FIXME: figure out how to just use the bytes in-place
-     byte[] data = buffer.bytes();
+     // run the machine directly over the backing bytes; p and pe index into
+     // data, while the offsets kept in parser and handed to Http11 stay
+     // relative to the start of buffer
+     byte[] data = buffer.unsafeBytes();
+     int begin = buffer.begin();
+     p = begin + off;
+     pe = begin + len;
      parser.buffer = buffer;
 
      %% write exec;
 
      parser.cs = cs;
-     parser.nread += (p - off);
+     parser.nread += (p - begin - off);
      
      assert p <= pe                  : "buffer overflow after parsing execute";
      assert parser.nread <= len      : "nread longer than length";
@@ -0,0 +1,215 @@
+package org.jruby.puma;
+
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyModule;
+import org.jruby.RubyObject;
+import org.jruby.RubyString;
+
+import org.jruby.anno.JRubyMethod;
+
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import org.jruby.util.ByteList;
+
+/**
+ * Incremental decoder for a chunked transfer-encoding body, the same state
+ * machine as chunked_decoder.c. Raw bytes go in as they arrive and each run
+ * of payload is written to the body IO as a view of the input, so nothing is
+ * copied or buffered up front.
+ */
+public class ChunkedDecoder extends RubyObject {
+    /** Longest chunk size line or trailer line accepted, extensions included */
+    public final static int MAX_LINE_LENGTH = 4096;
+
+    private static final int ERROR = -1;
+    private static final int SIZE_START = 0;
+    private static final int SIZE = 1;
+    private static final int EXTENSION = 2;
+    private static final int SIZE_LF = 3;
+    private static final int DATA = 4;
+    private static final int DATA_CR = 5;
+    private static final int DATA_LF = 6;
+    private static final int TRAILER_START = 7;
+    private static final int TRAILER = 8;
+    private static final int TRAILER_LF = 9;
+    private static final int LAST_LF = 10;
+    private static final int DONE = 11;
+
+    // refuse sizes that would overflow on the next digit
+    private static final long MAX_CHUNK_SIZE = Long.MAX_VALUE >> 4;
+
+    private static final ObjectAllocator ALLOCATOR = new ObjectAllocator() {
+        public IRubyObject allocate(Ruby runtime, RubyClass klass) {
+            return new ChunkedDecoder(runtime, klass);
+        }
+    };
+
+    public static void createChunkedDecoder(Ruby runtime) {
+        RubyModule mPuma = runtime.defineModule("Puma");
+        RubyClass cChunkedDecoder = mPuma.defineClassUnder("ChunkedDecoder", runtime.getObject(), ALLOCATOR);
+        cChunkedDecoder.defineAnnotatedMethods(ChunkedDecoder.class);
+    }
+
+    private int state = SIZE_START;
+    private long remaining;
+    private int lineLength;
+
+    public ChunkedDecoder(Ruby runtime, RubyClass klass) {
+        super(runtime, klass);
+    }
+
+    @JRubyMethod
+    public IRubyObject reset() {
+        state = SIZE_START;
+        remaining = 0;
+        lineLength = 0;
+        return getRuntime().getNil();
+    }
+
+    /**
+     * Decodes the next piece of a chunked body, writing the payload to io as it goes.
+     * Returns nil while the body continues. Once it is complete, returns whatever
+     * followed it in data, which belongs to the next request.
+     */
+    @JRubyMethod
+    public IRubyObject decode(ThreadContext context, IRubyObject data, IRubyObject io) {
+        Ruby runtime = context.runtime;
+        RubyString source = data.convertToString();
+        ByteList bytes = source.getByteList();
+        byte[] buffer = bytes.unsafeBytes();
+        int begin = bytes.begin();
+        int p = begin;
+        int pe = begin + bytes.realSize();
+        int digit;
+
+        while (p < pe && state != DONE && state != ERROR) {
+            switch (state) {
+            case SIZE_START:
+                if ((digit = Character.digit(buffer[p], 16)) < 0) {
+                    state = ERROR;
+                    continue;
+                }
+                remaining = digit;
+                lineLength = 1;
+                state = SIZE;
+                break;
+
+            case SIZE:
+                if ((digit = Character.digit(buffer[p], 16)) >= 0) {
+                    if (remaining > MAX_CHUNK_SIZE) {
+                        state = ERROR;
+                        continue;
+                    }
+                    remaining = (remaining << 4) | digit;
+                } else if (buffer[p] == '\r') {
+                    state = SIZE_LF;
+                } else if (buffer[p] == '\n') {
+                    state = ERROR;
+                    continue;
+                } else {
+                    state = EXTENSION;
+                }
+                lineLength++;
+                break;
+
+            case EXTENSION:
+                if (buffer[p] == '\r') {
+                    state = SIZE_LF;
+                } else if (buffer[p] == '\n') {
+                    state = ERROR;
+                    continue;
+                }
+                lineLength++;
+                break;
+
+            case SIZE_LF:
+                if (buffer[p] != '\n') {
+                    state = ERROR;
+                    continue;
+                }
+                state = remaining == 0 ? TRAILER_START : DATA;
+                break;
+
+            case DATA: {
+                int length = (int) Math.min(pe - p, remaining);
+                RubyString part = RubyString.newStringShared(runtime, new ByteList(buffer, p, length, false));
+                io.callMethod(context, "write", part);
+                remaining -= length;
+                if (remaining == 0) {
+                    state = DATA_CR;
+                }
+                p += length;
+                continue;
+            }
+
+            case DATA_CR:
+                if (buffer[p] != '\r') {
+                    state = ERROR;
+                    continue;
+                }
+                state = DATA_LF;
+                break;
+
+            case DATA_LF:
+                if (buffer[p] != '\n') {
+                    state = ERROR;
+                    continue;
+                }
+                state = SIZE_START;
+                break;
+
+            case TRAILER_START:
+                if (buffer[p] == '\r') {
+                    state = LAST_LF;
+                } else {
+                    // trailer fields aren't passed on to the app, just skipped
+                    lineLength = 1;
+                    state = TRAILER;
+                }
+                break;
+
+            case TRAILER:
+                if (buffer[p] == '\r') {
+                    state = TRAILER_LF;
+                } else if (buffer[p] == '\n') {
+                    state = ERROR;
+                    continue;
+                }
+                lineLength++;
+                break;
+
+            case TRAILER_LF:
+                if (buffer[p] != '\n') {
+                    state = ERROR;
+                    continue;
+                }
+                state = TRAILER_START;
+                break;
+
+            case LAST_LF:
+                if (buffer[p] != '\n') {
+                    state = ERROR;
+                    continue;
+                }
+                state = DONE;
+                break;
+            }
+
+            if (lineLength > MAX_LINE_LENGTH) {
+                state = ERROR;
+                continue;
+            }
+            p++;
+        }
+
+        if (state == ERROR) {
+            throw Http11.newHTTPParserError(runtime, "Invalid chunked encoding in the request body.");
+        } else if (state == DONE) {
+            return source.makeShared(runtime, p - begin, pe - p);
+        }
+        return runtime.getNil();
+    }
+}
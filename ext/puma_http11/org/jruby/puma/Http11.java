@@ -11,12 +11,15 @@ import org.jruby.RubyString;
 import org.jruby.anno.JRubyMethod;
 
 import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
 
 import org.jruby.exceptions.RaiseException;
 
 import org.jruby.util.ByteList;
 
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * @author <a href="mailto:ola.bini@ki.se">Ola Bini</a>
  * @author <a href="mailto:headius@headius.com">Charles Oliver Nutter</a>
@@ -48,27 +51,131 @@ public class Http11 extends RubyObject {
     public static final ByteList QUERY_STRING_BYTELIST = new ByteList(ByteList.plain("QUERY_STRING"));
     public static final ByteList HTTP_VERSION_BYTELIST = new ByteList(ByteList.plain("HTTP_VERSION"));
 
-    private static ObjectAllocator ALLOCATOR = new ObjectAllocator() {
-        public IRubyObject allocate(Ruby runtime, RubyClass klass) {
-            return new Http11(runtime, klass);
-        }
+    /**
+     * A list of common HTTP headers we expect to receive, already upcased and
+     * with dashes turned into underscores. Mirrors common_http_fields in the C
+     * extension so we can hand out the same frozen key instead of building a
+     * new one for every header of every request.
+     */
+    private static final String[] COMMON_FIELDS = {
+        "ACCEPT",
+        "ACCEPT_CHARSET",
+        "ACCEPT_ENCODING",
+        "ACCEPT_LANGUAGE",
+        "ALLOW",
+        "AUTHORIZATION",
+        "CACHE_CONTROL",
+        "CONNECTION",
+        "CONTENT_ENCODING",
+        "CONTENT_LENGTH",
+        "CONTENT_TYPE",
+        "COOKIE",
+        "DATE",
+        "EXPECT",
+        "FROM",
+        "HOST",
+        "IF_MATCH",
+        "IF_MODIFIED_SINCE",
+        "IF_NONE_MATCH",
+        "IF_RANGE",
+        "IF_UNMODIFIED_SINCE",
+        "KEEP_ALIVE", // Firefox sends this
+        "MAX_FORWARDS",
+        "PRAGMA",
+        "PROXY_AUTHORIZATION",
+        "RANGE",
+        "REFERER",
+        "TE",
+        "TRAILER",
+        "TRANSFER_ENCODING",
+        "UPGRADE",
+        "USER_AGENT",
+        "VIA",
+        "X_FORWARDED_FOR", // common for proxies
+        "X_REAL_IP", // common for proxies
+        "WARNING"
     };
 
+    private static final byte[][] COMMON_FIELD_NAMES = new byte[COMMON_FIELDS.length][];
+
+    /**
+     * Indexes into COMMON_FIELD_NAMES bucketed by name length, so a lookup only
+     * compares against the handful of names that could possibly match.
+     */
+    private static final int[][] COMMON_FIELDS_BY_LENGTH;
+
+    static {
+        int longest = 0;
+        for (int i = 0; i < COMMON_FIELDS.length; i++) {
+            COMMON_FIELD_NAMES[i] = ByteList.plain(COMMON_FIELDS[i]);
+            longest = Math.max(longest, COMMON_FIELD_NAMES[i].length);
+        }
+
+        int[] counts = new int[longest + 1];
+        for (byte[] name : COMMON_FIELD_NAMES) counts[name.length]++;
+
+        COMMON_FIELDS_BY_LENGTH = new int[longest + 1][];
+        for (int len = 0; len <= longest; len++) {
+            COMMON_FIELDS_BY_LENGTH[len] = new int[counts[len]];
+            counts[len] = 0;
+        }
+        for (int i = 0; i < COMMON_FIELD_NAMES.length; i++) {
+            int len = COMMON_FIELD_NAMES[i].length;
+            COMMON_FIELDS_BY_LENGTH[len][counts[len]++] = i;
+        }
+    }
+
+    // process wide counters, LongAdder keeps them cheap to bump from every thread
+    private static final LongAdder PARSE_CALLS = new LongAdder();
+    private static final LongAdder PARSED_BYTES = new LongAdder();
+    private static final LongAdder PARSE_NANOS = new LongAdder();
+
     public static void createHttp11(Ruby runtime) {
         RubyModule mPuma = runtime.defineModule("Puma");
         mPuma.defineClassUnder("HttpParserError",runtime.getClass("IOError"),runtime.getClass("IOError").getAllocator());
 
-        RubyClass cHttpParser = mPuma.defineClassUnder("HttpParser",runtime.getObject(),ALLOCATOR);
+        // The frozen keys belong to this runtime, so every parser it allocates shares them
+        final RubyString[] commonFieldKeys = newCommonFieldKeys(runtime);
+        ObjectAllocator allocator = new ObjectAllocator() {
+            public IRubyObject allocate(Ruby runtime, RubyClass klass) {
+                return new Http11(runtime, klass, commonFieldKeys);
+            }
+        };
+
+        RubyClass cHttpParser = mPuma.defineClassUnder("HttpParser",runtime.getObject(),allocator);
         cHttpParser.defineAnnotatedMethods(Http11.class);
     }
 
+    private static RubyString[] newCommonFieldKeys(Ruby runtime) {
+        RubyString[] keys = new RubyString[COMMON_FIELD_NAMES.length];
+        for (int i = 0; i < COMMON_FIELD_NAMES.length; i++) {
+            ByteList name = new ByteList(COMMON_FIELD_NAMES[i]);
+            RubyString key;
+            if (name.equals(CONTENT_LENGTH_BYTELIST) || name.equals(CONTENT_TYPE_BYTELIST)) {
+                key = RubyString.newStringShared(runtime, name);
+            } else {
+                key = RubyString.newStringShared(runtime, HTTP_PREFIX_BYTELIST);
+                key.cat(name);
+            }
+            key.setFrozen(true);
+            keys[i] = key;
+        }
+        return keys;
+    }
+
     private Ruby runtime;
     private Http11Parser hp;
     private RubyString body;
+    private final RubyString[] commonFieldKeys;
 
     public Http11(Ruby runtime, RubyClass clazz) {
+        this(runtime, clazz, newCommonFieldKeys(runtime));
+    }
+
+    private Http11(Ruby runtime, RubyClass clazz, RubyString[] commonFieldKeys) {
         super(runtime,clazz);
         this.runtime = runtime;
+        this.commonFieldKeys = commonFieldKeys;
         this.hp = new Http11Parser();
         this.hp.parser.init();
     }
@@ -79,7 +186,7 @@ public class Http11 extends RubyObject {
         }
     }
 
-    private static RaiseException newHTTPParserError(Ruby runtime, String msg) {
+    static RaiseException newHTTPParserError(Ruby runtime, String msg) {
         return runtime.newRaiseException(getHTTPParserError(runtime), msg);
     }
 
@@ -88,39 +195,72 @@ public class Http11 extends RubyObject {
         return (RubyClass)runtime.getModule("Puma").getConstant("HttpParserError");
     }
 
-    public static void http_field(Ruby runtime, RubyHash req, ByteList buffer, int field, int flen, int value, int vlen) {
+    /**
+     * Finds the common field matching the raw header name at field, comparing as
+     * if it were already upcased with dashes turned into underscores.
+     * Returns -1 when the name isn't one of COMMON_FIELDS.
+     */
+    private static int findCommonField(ByteList buffer, int field, int flen) {
+        if (flen >= COMMON_FIELDS_BY_LENGTH.length) return -1;
+
+        byte[] bytes = buffer.unsafeBytes();
+        int begin = buffer.begin() + field;
+
+        candidates:
+        for (int index : COMMON_FIELDS_BY_LENGTH[flen]) {
+            byte[] name = COMMON_FIELD_NAMES[index];
+            for (int i = 0; i < flen; i++) {
+                int bite = bytes[begin + i] & 0xFF;
+                if (bite == '-') {
+                    bite = '_';
+                } else if (bite >= 'a' && bite <= 'z') {
+                    bite -= 'a' - 'A';
+                }
+                if (bite != name[i]) continue candidates;
+            }
+            return index;
+        }
+        return -1;
+    }
+
+    public void http_field(Ruby runtime, RubyHash req, ByteList buffer, int field, int flen, int value, int vlen) {
         RubyString f;
         IRubyObject v;
         validateMaxLength(runtime, flen, MAX_FIELD_NAME_LENGTH, MAX_FIELD_NAME_LENGTH_ERR);
         validateMaxLength(runtime, vlen, MAX_FIELD_VALUE_LENGTH, MAX_FIELD_VALUE_LENGTH_ERR);
 
-        ByteList b = new ByteList(buffer,field,flen);
-        for(int i = 0,j = b.length();i<j;i++) {
-            int bite = b.get(i) & 0xFF;
-            if(bite == '-') {
-                b.set(i, (byte)'_');
-            } else {
-                b.set(i, (byte)Character.toUpperCase(bite));
+        int common = findCommonField(buffer, field, flen);
+        if (common >= 0) {
+            f = commonFieldKeys[common];
+        } else {
+            // We got a strange header that we don't have a memoized value for.
+            // Fallback to creating a new string to use as a hash key.
+            ByteList b = new ByteList(buffer,field,flen);
+            for(int i = 0,j = b.length();i<j;i++) {
+                int bite = b.get(i) & 0xFF;
+                if(bite == '-') {
+                    b.set(i, (byte)'_');
+                } else {
+                    b.set(i, (byte)Character.toUpperCase(bite));
+                }
             }
+
+            f = RubyString.newStringShared(runtime, HTTP_PREFIX_BYTELIST);
+            f.cat(b);
         }
 
         while (vlen > 0 && Character.isWhitespace(buffer.get(value + vlen - 1))) vlen--;
 
-        if (b.equals(CONTENT_LENGTH_BYTELIST) || b.equals(CONTENT_TYPE_BYTELIST)) {
-          f = RubyString.newString(runtime, b);
-        } else {
-          f = RubyString.newStringShared(runtime, HTTP_PREFIX_BYTELIST);
-          f.cat(b);
-        }
-
-        b = new ByteList(buffer, value, vlen);
         v = req.fastARef(f);
         if (v == null || v.isNil()) {
-            req.fastASet(f, RubyString.newString(runtime, b));
+            // A copy-on-write view of the request buffer; see the buffer contract on execute
+            req.fastASet(f, RubyString.newStringShared(runtime, buffer.unsafeBytes(), buffer.begin() + value, vlen));
         } else {
+            // if duplicate header, normalize to comma-separated values; the first
+            // cat copies the shared value before writing to it
             RubyString vs = v.convertToString();
             vs.cat(COMMA_SPACE_BYTELIST);
-            vs.cat(b);
+            vs.cat(buffer.unsafeBytes(), buffer.begin() + value, vlen);
         }
     }
 
@@ -129,32 +269,40 @@ public class Http11 extends RubyObject {
         req.fastASet(RubyString.newStringShared(runtime, REQUEST_METHOD_BYTELIST),val);
     }
 
-    public static void request_uri(Ruby runtime, RubyHash req, ByteList buffer, int at, int length) {
+    /**
+     * The env value for a request line element, a copy-on-write view of the request buffer
+     * like the header values; see the buffer contract on execute.
+     */
+    private static RubyString requestLineValue(Ruby runtime, ByteList buffer, int at, int length) {
+        return RubyString.newStringShared(runtime, buffer.unsafeBytes(), buffer.begin() + at, length);
+    }
+
+    public void request_uri(Ruby runtime, RubyHash req, ByteList buffer, int at, int length) {
         validateMaxLength(runtime, length, MAX_REQUEST_URI_LENGTH, MAX_REQUEST_URI_LENGTH_ERR);
-        RubyString val = RubyString.newString(runtime,new ByteList(buffer,at,length));
+        RubyString val = requestLineValue(runtime, buffer, at, length);
         req.fastASet(RubyString.newStringShared(runtime, REQUEST_URI_BYTELIST),val);
     }
 
-    public static void fragment(Ruby runtime, RubyHash req, ByteList buffer, int at, int length) {
+    public void fragment(Ruby runtime, RubyHash req, ByteList buffer, int at, int length) {
         validateMaxLength(runtime, length, MAX_FRAGMENT_LENGTH, MAX_FRAGMENT_LENGTH_ERR);
-        RubyString val = RubyString.newString(runtime,new ByteList(buffer,at,length));
+        RubyString val = requestLineValue(runtime, buffer, at, length);
         req.fastASet(RubyString.newStringShared(runtime, FRAGMENT_BYTELIST),val);
     }
 
-    public static void request_path(Ruby runtime, RubyHash req, ByteList buffer, int at, int length) {
+    public void request_path(Ruby runtime, RubyHash req, ByteList buffer, int at, int length) {
         validateMaxLength(runtime, length, MAX_REQUEST_PATH_LENGTH, MAX_REQUEST_PATH_LENGTH_ERR);
-        RubyString val = RubyString.newString(runtime,new ByteList(buffer,at,length));
+        RubyString val = requestLineValue(runtime, buffer, at, length);
         req.fastASet(RubyString.newStringShared(runtime, REQUEST_PATH_BYTELIST),val);
     }
 
-    public static void query_string(Ruby runtime, RubyHash req, ByteList buffer, int at, int length) {
+    public void query_string(Ruby runtime, RubyHash req, ByteList buffer, int at, int length) {
         validateMaxLength(runtime, length, MAX_QUERY_STRING_LENGTH, MAX_QUERY_STRING_LENGTH_ERR);
-        RubyString val = RubyString.newString(runtime,new ByteList(buffer,at,length));
+        RubyString val = requestLineValue(runtime, buffer, at, length);
         req.fastASet(RubyString.newStringShared(runtime, QUERY_STRING_BYTELIST),val);
     }
 
-    public static void http_version(Ruby runtime, RubyHash req, ByteList buffer, int at, int length) {
-        RubyString val = RubyString.newString(runtime,new ByteList(buffer,at,length));
+    public void http_version(Ruby runtime, RubyHash req, ByteList buffer, int at, int length) {
+        RubyString val = requestLineValue(runtime, buffer, at, length);
         req.fastASet(RubyString.newStringShared(runtime, HTTP_VERSION_BYTELIST),val);
     }
 
@@ -180,6 +328,12 @@ public class Http11 extends RubyObject {
         return this.hp.is_finished() ? runtime.getTrue() : runtime.getFalse();
     }
 
+    /**
+     * Header and request line values put into req_hash, other than REQUEST_METHOD,
+     * share their bytes with data rather than being copied out of it. Appending to data is fine, since that never touches
+     * bytes already parsed, but callers must not otherwise modify it in place
+     * while those values are still in use.
+     */
     @JRubyMethod
     public IRubyObject execute(IRubyObject req_hash, IRubyObject data, IRubyObject start) {
         int from = RubyNumeric.fix2int(start);
@@ -192,7 +346,15 @@ public class Http11 extends RubyObject {
 
             parser.data = (RubyHash) req_hash;
 
-            hp.execute(runtime, this, d,from);
+            int nread = parser.nread;
+            long startedAt = System.nanoTime();
+            try {
+                hp.execute(runtime, this, d,from);
+            } finally {
+                PARSE_NANOS.add(System.nanoTime() - startedAt);
+                PARSE_CALLS.increment();
+                PARSED_BYTES.add(parser.nread - nread);
+            }
 
             validateMaxLength(runtime, parser.nread,MAX_HEADER_LENGTH, MAX_HEADER_LENGTH_ERR);
 
@@ -204,6 +366,20 @@ public class Http11 extends RubyObject {
         }
     }
 
+    /**
+     * Returns counters for all parsers in the process: execute calls, bytes parsed and the total
+     * time spent parsing
+     */
+    @JRubyMethod(meta = true)
+    public static IRubyObject stats(ThreadContext context, IRubyObject recv) {
+        Ruby runtime = context.runtime;
+        RubyHash stats = RubyHash.newHash(runtime);
+        stats.op_aset(context, runtime.newSymbol("http_parser_calls"), runtime.newFixnum(PARSE_CALLS.sum()));
+        stats.op_aset(context, runtime.newSymbol("http_parser_bytes"), runtime.newFixnum(PARSED_BYTES.sum()));
+        stats.op_aset(context, runtime.newSymbol("http_parser_time_us"), runtime.newFixnum(PARSE_NANOS.sum() / 1000));
+        return stats;
+    }
+
     @JRubyMethod(name = "error?")
     public IRubyObject has_error() {
         return this.hp.has_error() ? runtime.getTrue() : runtime.getFalse();
@@ -212,12 +212,12 @@ static final int puma_parser_en_main = 1;
           cs = 0;
 
           
-// line 218 "ext/puma_http11/org/jruby/puma/Http11Parser.java"
+// line 216 "ext/puma_http11/org/jruby/puma/Http11Parser.java"
 	{
 	cs = puma_parser_start;
 	}
 
-// line 90 "ext/puma_http11/http11_parser.java.rl"
+// line 88 "ext/puma_http11/http11_parser.java.rl"
 
           body_start = 0;
           content_len = 0;
@@ -236,11 +236,13 @@ static final int puma_parser_en_main = 1;
      int len = buffer.length();
      assert off<=len : "offset past end of buffer";
 
-     p = off;
-     pe = len;
-     // get a copy of the bytes, since it may not start at 0
-     // FIXME: figure out how to just use the bytes in-place
-     byte[] data = buffer.bytes();
+     // run the machine directly over the backing bytes; p and pe index into
+     // data, while the offsets kept in parser and handed to Http11 stay
+     // relative to the start of buffer
+     byte[] data = buffer.unsafeBytes();
+     int begin = buffer.begin();
+     p = begin + off;
+     pe = begin + len;
      parser.buffer = buffer;
 
      
@@ -326,11 +328,11 @@ case 1:
 			{
 	case 0:
 // line 15 "ext/puma_http11/http11_parser.java.rl"
-	{parser.mark = p; }
+	{parser.mark = p - begin; }
 	break;
 	case 1:
 // line 17 "ext/puma_http11/http11_parser.java.rl"
-	{ parser.field_start = p; }
+	{ parser.field_start = p - begin; }
 	break;
 	case 2:
 // line 18 "ext/puma_http11/http11_parser.java.rl"
@@ -339,64 +341,64 @@ case 1:
 	case 3:
 // line 19 "ext/puma_http11/http11_parser.java.rl"
 	{ 
-    parser.field_len = p-parser.field_start;
+    parser.field_len = p-begin-parser.field_start;
   }
 	break;
 	case 4:
 // line 23 "ext/puma_http11/http11_parser.java.rl"
-	{ parser.mark = p; }
+	{ parser.mark = p - begin; }
 	break;
 	case 5:
 // line 24 "ext/puma_http11/http11_parser.java.rl"
 	{
-    Http11.http_field(runtime, parser.data, parser.buffer, parser.field_start, parser.field_len, parser.mark, p-parser.mark);
+    http.http_field(runtime, parser.data, parser.buffer, parser.field_start, parser.field_len, parser.mark, p-begin-parser.mark);
   }
 	break;
 	case 6:
 // line 27 "ext/puma_http11/http11_parser.java.rl"
 	{
-    Http11.request_method(runtime, parser.data, parser.buffer, parser.mark, p-parser.mark);
+    Http11.request_method(runtime, parser.data, parser.buffer, parser.mark, p-begin-parser.mark);
   }
 	break;
 	case 7:
 // line 30 "ext/puma_http11/http11_parser.java.rl"
 	{
-    Http11.request_uri(runtime, parser.data, parser.buffer, parser.mark, p-parser.mark);
+    http.request_uri(runtime, parser.data, parser.buffer, parser.mark, p-begin-parser.mark);
   }
 	break;
 	case 8:
 // line 33 "ext/puma_http11/http11_parser.java.rl"
 	{
-    Http11.fragment(runtime, parser.data, parser.buffer, parser.mark, p-parser.mark);
+    http.fragment(runtime, parser.data, parser.buffer, parser.mark, p-begin-parser.mark);
   }
 	break;
 	case 9:
 // line 37 "ext/puma_http11/http11_parser.java.rl"
-	{parser.query_start = p; }
+	{parser.query_start = p - begin; }
 	break;
 	case 10:
 // line 38 "ext/puma_http11/http11_parser.java.rl"
 	{
-    Http11.query_string(runtime, parser.data, parser.buffer, parser.query_start, p-parser.query_start);
+    http.query_string(runtime, parser.data, parser.buffer, parser.query_start, p-begin-parser.query_start);
   }
 	break;
 	case 11:
 // line 42 "ext/puma_http11/http11_parser.java.rl"
 	{
-    Http11.http_version(runtime, parser.data, parser.buffer, parser.mark, p-parser.mark);
+    http.http_version(runtime, parser.data, parser.buffer, parser.mark, p-begin-parser.mark);
   }
 	break;
 	case 12:
 // line 46 "ext/puma_http11/http11_parser.java.rl"
 	{
-    Http11.request_path(runtime, parser.data, parser.buffer, parser.mark, p-parser.mark);
+    http.request_path(runtime, parser.data, parser.buffer, parser.mark, p-begin-parser.mark);
   }
 	break;
 	case 13:
 // line 50 "ext/puma_http11/http11_parser.java.rl"
 	{ 
-    parser.body_start = p + 1;
-    http.header_done(runtime, parser.data, parser.buffer, p + 1, pe - p - 1);
+    parser.body_start = p - begin + 1;
+    http.header_done(runtime, parser.data, parser.buffer, p - begin + 1, pe - p - 1);
     { p += 1; _goto_targ = 5; if (true)  continue _goto;}
   }
 	break;
@@ -423,7 +425,7 @@ case 5:
 // line 116 "ext/puma_http11/http11_parser.java.rl"
 
      parser.cs = cs;
-     parser.nread += (p - off);
+     parser.nread += (p - begin - off);
      
      assert p <= pe                  : "buffer overflow after parsing execute";
      assert parser.nread <= len      : "nread longer than length";
@@ -1,9 +1,13 @@
 package org.jruby.puma;
 
 import org.jruby.Ruby;
+import org.jruby.RubyArray;
 import org.jruby.RubyClass;
+import org.jruby.RubyHash;
+import org.jruby.RubyIO;
 import org.jruby.RubyModule;
 import org.jruby.RubyObject;
+import org.jruby.RubyProc;
 import org.jruby.RubyString;
 import org.jruby.anno.JRubyMethod;
 import org.jruby.javasupport.JavaEmbedUtils;
@@ -11,7 +15,9 @@ import org.jruby.runtime.Block;
 import org.jruby.runtime.ObjectAllocator;
 import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.runtime.builtin.InternalVariables;
 import org.jruby.util.ByteList;
+import org.jruby.util.io.SelectorPool;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.TrustManagerFactory;
@@ -19,12 +25,19 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -32,6 +45,19 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import static javax.net.ssl.SSLEngineResult.Status;
 import static javax.net.ssl.SSLEngineResult.HandshakeStatus;
@@ -55,6 +81,73 @@ public class MiniSSL extends RubyObject {
     eng.defineAnnotatedMethods(MiniSSL.class);
   }
 
+  /**
+   * A bounded pool of buffers for TLS records, shared by every engine. Engines only hold on to
+   * their net buffers while there is ciphertext in flight, so an idle keep-alive connection
+   * doesn't pin two packet sized buffers.
+   *
+   * These are heap buffers on purpose: JSSE wraps and unwraps direct buffers through temporary
+   * heap copies, which made both directions several times slower.
+   */
+  private static class BufferPool {
+    private final int maxSize;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    private BufferPool(int maxSize) { this.maxSize = maxSize; }
+
+    /**
+     * Hands out a cleared buffer of at least capacity bytes, allocating one if the pool has none
+     */
+    public ByteBuffer acquire(int capacity) {
+      ByteBuffer buffer;
+      while ((buffer = buffers.poll()) != null) {
+        size.decrementAndGet();
+        if (buffer.capacity() >= capacity) {
+          buffer.clear();
+          return buffer;
+        }
+      }
+      return ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Returns a buffer to the pool, or leaves it to the GC once the pool is full
+     */
+    public void release(ByteBuffer buffer) {
+      if (size.incrementAndGet() > maxSize) {
+        size.decrementAndGet();
+        return;
+      }
+      buffers.offer(buffer);
+    }
+  }
+
+  private static final BufferPool NET_BUFFERS = new BufferPool(256);
+
+  /** Milliseconds to wait for a full socket to drain, the same as Puma::Server::WRITE_TIMEOUT */
+  private static final long WRITE_TIMEOUT = 10000;
+
+  /**
+   * Runs delegated handshake tasks for engines that asked for it with delegate_tasks. The queue is
+   * bounded, when it fills up tasks run on the calling thread as they did before.
+   */
+  private static final ThreadPoolExecutor TASK_EXECUTOR;
+  static {
+    int threads = Runtime.getRuntime().availableProcessors();
+    TASK_EXECUTOR = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(1024), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "puma-ssl-task-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    TASK_EXECUTOR.allowCoreThreadTimeOut(true);
+  }
+
   /**
    * Fairly transparent wrapper around {@link java.nio.ByteBuffer} which adds the enhancements we need
    */
@@ -63,6 +156,7 @@ public class MiniSSL extends RubyObject {
 
     private MiniSSLBuffer(int capacity) { buffer = ByteBuffer.allocate(capacity); }
     private MiniSSLBuffer(byte[] initialContents) { buffer = ByteBuffer.wrap(initialContents); }
+    private MiniSSLBuffer(ByteBuffer buffer) { this.buffer = buffer; }
 
     public void clear() { buffer.clear(); }
     public void compact() { buffer.compact(); }
@@ -89,6 +183,7 @@ public class MiniSSL extends RubyObject {
      */
     public void resize(int newCapacity) {
       if (newCapacity > buffer.capacity()) {
+        BUFFER_RESIZES.increment();
         ByteBuffer dstTmp = ByteBuffer.allocate(newCapacity);
         flip();
         dstTmp.put(buffer);
@@ -115,12 +210,37 @@ public class MiniSSL extends RubyObject {
       return new ByteList(bss);
     }
 
+    /**
+     * Appends everything written to the buffer to bytes and clears it, without the copy asByteList makes
+     */
+    public void drainTo(ByteList bytes) {
+      flip();
+      bytes.append(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      buffer.clear();
+    }
+
     @Override
     public String toString() { return buffer.toString(); }
   }
 
+  /** Source for handshake wraps, which never carry application data */
+  private static final MiniSSLBuffer NO_APP_DATA = new MiniSSLBuffer(0);
+
   private SSLEngine engine;
+  private int packetBufferSize;
+  private long createdAt;
+  private SessionIds seenSessionIds;
+  // set when the context offers protocols through ALPN
+  private boolean alpn;
+  private long handshakeStartedAt;
+  private boolean handshakeCompleted;
+  private IRubyObject taskCallback;
+  // set by attach, when ciphertext goes straight to and from the socket
+  private SocketChannel channel;
+  private volatile boolean taskPending;
+  // inboundNetData and outboundNetData come from NET_BUFFERS and are null while empty
   private MiniSSLBuffer inboundNetData;
+  private MiniSSLBuffer inboundAppData;
   private MiniSSLBuffer outboundAppData;
   private MiniSSLBuffer outboundNetData;
 
@@ -128,51 +248,198 @@ public class MiniSSL extends RubyObject {
     super(runtime, klass);
   }
 
+  // process wide counters, LongAdder keeps them cheap to bump from every thread
+  private static final LongAdder SESSION_HITS = new LongAdder();
+  private static final LongAdder SESSION_MISSES = new LongAdder();
+  private static final LongAdder HANDSHAKE_NANOS = new LongAdder();
+  private static final LongAdder WRAPS = new LongAdder();
+  private static final LongAdder UNWRAPS = new LongAdder();
+  private static final LongAdder BUFFER_RESIZES = new LongAdder();
+  private static final LongAdder BUFFER_OVERFLOWS = new LongAdder();
+
+  /**
+   * Returns counters for all engines in the process: handshakes that resumed a cached session or
+   * negotiated a new one, the total time spent handshaking, wrap and unwrap calls, buffers that had
+   * to grow and operations retried after a BUFFER_OVERFLOW
+   */
   @JRubyMethod(meta = true)
-  public static IRubyObject server(ThreadContext context, IRubyObject recv, IRubyObject miniSSLContext) {
-    RubyClass klass = (RubyClass) recv;
+  public static IRubyObject stats(ThreadContext context, IRubyObject recv) {
+    Ruby runtime = context.runtime;
+    RubyHash stats = RubyHash.newHash(runtime);
+    stats.op_aset(context, runtime.newSymbol("ssl_session_hits"), runtime.newFixnum(SESSION_HITS.sum()));
+    stats.op_aset(context, runtime.newSymbol("ssl_session_misses"), runtime.newFixnum(SESSION_MISSES.sum()));
+    stats.op_aset(context, runtime.newSymbol("ssl_handshake_time_us"), runtime.newFixnum(HANDSHAKE_NANOS.sum() / 1000));
+    stats.op_aset(context, runtime.newSymbol("ssl_wraps"), runtime.newFixnum(WRAPS.sum()));
+    stats.op_aset(context, runtime.newSymbol("ssl_unwraps"), runtime.newFixnum(UNWRAPS.sum()));
+    stats.op_aset(context, runtime.newSymbol("ssl_buffer_resizes"), runtime.newFixnum(BUFFER_RESIZES.sum()));
+    stats.op_aset(context, runtime.newSymbol("ssl_buffer_overflows"), runtime.newFixnum(BUFFER_OVERFLOWS.sum()));
+    return stats;
+  }
 
-    return klass.newInstance(context,
-        new IRubyObject[] { miniSSLContext },
-        Block.NULL_BLOCK);
+  private static final String SSL_CONTEXT_VARIABLE = "__puma_ssl_context";
+
+  // put on each session once its handshake completes, a session from the server's cache still has it
+  private static final String SESSION_SEEN = "puma.session_seen";
+
+  /**
+   * The IDs of the sessions handshakes on one SSLContext ended up with, the most recent
+   * MAX_SIZE of them. The JDK's default session cache holds as many.
+   */
+  private static class SessionIds {
+    private static final int MAX_SIZE = 20480;
+
+    private final Map<ByteBuffer, Boolean> ids = new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+        return size() > MAX_SIZE;
+      }
+    };
+
+    /**
+     * Records id, returns whether it was already there
+     */
+    synchronized boolean add(byte[] id) {
+      return ids.put(ByteBuffer.wrap(id), Boolean.TRUE) != null;
+    }
   }
 
-  @JRubyMethod
-  public IRubyObject initialize(ThreadContext threadContext, IRubyObject miniSSLContext)
-      throws KeyStoreException, IOException, CertificateException, NoSuchAlgorithmException, UnrecoverableKeyException, KeyManagementException {
-    KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
-    KeyStore ts = KeyStore.getInstance(KeyStore.getDefaultType());
+  /**
+   * An SSLContext along with the keystore it was built from
+   */
+  private static class CachedSSLContext {
+    private final String keystoreFile;
+    private final String password;
+    private final long lastModified;
+    private final SSLContext sslContext;
+    private final SessionIds sessionIds = new SessionIds();
+
+    private CachedSSLContext(String keystoreFile, String password, long lastModified, SSLContext sslContext) {
+      this.keystoreFile = keystoreFile;
+      this.password = password;
+      this.lastModified = lastModified;
+      this.sslContext = sslContext;
+    }
 
-    char[] password = miniSSLContext.callMethod(threadContext, "keystore_pass").convertToString().asJavaString().toCharArray();
+    private boolean isFor(String keystoreFile, String password, long lastModified) {
+      return this.keystoreFile.equals(keystoreFile) && this.password.equals(password) && this.lastModified == lastModified;
+    }
+  }
+
+  /**
+   * Returns the SSLContext for a Puma::MiniSSL::Context. It is built once and kept on the context,
+   * then rebuilt if the keystore or its password changes, or the keystore file is modified so that
+   * rotated certificates are picked up without a restart.
+   */
+  private static CachedSSLContext sslContextFor(ThreadContext threadContext, IRubyObject miniSSLContext)
+      throws KeyStoreException, IOException, CertificateException, NoSuchAlgorithmException, UnrecoverableKeyException, KeyManagementException {
+    String password = miniSSLContext.callMethod(threadContext, "keystore_pass").convertToString().asJavaString();
     String keystoreFile = miniSSLContext.callMethod(threadContext, "keystore").convertToString().asJavaString();
-    ks.load(new FileInputStream(keystoreFile), password);
-    ts.load(new FileInputStream(keystoreFile), password);
+    long lastModified = new File(keystoreFile).lastModified();
+
+    InternalVariables variables = miniSSLContext.getInternalVariables();
+    CachedSSLContext cached = (CachedSSLContext) variables.getInternalVariable(SSL_CONTEXT_VARIABLE);
+    if (cached != null && cached.isFor(keystoreFile, password, lastModified)) {
+      return cached;
+    }
+
+    KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+    FileInputStream keystoreStream = new FileInputStream(keystoreFile);
+    try {
+      ks.load(keystoreStream, password.toCharArray());
+    } finally {
+      keystoreStream.close();
+    }
 
     KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
-    kmf.init(ks, password);
+    kmf.init(ks, password.toCharArray());
 
+    // the keystore doubles as the truststore
     TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
-    tmf.init(ts);
+    tmf.init(ks);
 
     SSLContext sslCtx = SSLContext.getInstance("TLS");
-
     sslCtx.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
-    engine = sslCtx.createSSLEngine();
 
-    String[] protocols;
-    if(miniSSLContext.callMethod(threadContext, "no_tlsv1").isTrue()) {
-        protocols = new String[] { "TLSv1.1", "TLSv1.2" };
-    } else {
-        protocols = new String[] { "TLSv1", "TLSv1.1", "TLSv1.2" };
+    cached = new CachedSSLContext(keystoreFile, password, lastModified, sslCtx);
+    variables.setInternalVariable(SSL_CONTEXT_VARIABLE, cached);
+    return cached;
+  }
+
+  /**
+   * Applies the context's session cache size and timeout, leaving the JDK defaults for those that
+   * are nil. The session context only does any work when a value actually changes.
+   */
+  private static void configureSessionCache(ThreadContext threadContext, IRubyObject miniSSLContext, SSLContext sslCtx) {
+    SSLSessionContext sessionContext = sslCtx.getServerSessionContext();
+
+    IRubyObject cacheSize = miniSSLContext.callMethod(threadContext, "ssl_session_cache_size");
+    if (!cacheSize.isNil()) {
+      sessionContext.setSessionCacheSize((int) cacheSize.convertToInteger().getLongValue());
     }
 
-    if(miniSSLContext.callMethod(threadContext, "no_tlsv1_1").isTrue()) {
-        protocols = new String[] { "TLSv1.2" };
+    IRubyObject timeout = miniSSLContext.callMethod(threadContext, "ssl_session_timeout");
+    if (!timeout.isNil()) {
+      sessionContext.setSessionTimeout((int) timeout.convertToInteger().getLongValue());
+    }
+  }
+
+  @JRubyMethod(meta = true)
+  public static IRubyObject server(ThreadContext context, IRubyObject recv, IRubyObject miniSSLContext) {
+    RubyClass klass = (RubyClass) recv;
+
+    return klass.newInstance(context,
+        new IRubyObject[] { miniSSLContext },
+        Block.NULL_BLOCK);
+  }
+
+  @JRubyMethod
+  public IRubyObject initialize(ThreadContext threadContext, IRubyObject miniSSLContext)
+      throws KeyStoreException, IOException, CertificateException, NoSuchAlgorithmException, UnrecoverableKeyException, KeyManagementException {
+    createdAt = System.currentTimeMillis();
+    handshakeStartedAt = System.nanoTime();
+    CachedSSLContext cachedContext = sslContextFor(threadContext, miniSSLContext);
+    SSLContext sslCtx = cachedContext.sslContext;
+    seenSessionIds = cachedContext.sessionIds;
+    configureSessionCache(threadContext, miniSSLContext, sslCtx);
+    engine = sslCtx.createSSLEngine();
+
+    boolean noTLSv1_1 = miniSSLContext.callMethod(threadContext, "no_tlsv1_1").isTrue();
+    List<String> protocols = new ArrayList<String>();
+    if (!noTLSv1_1 && !miniSSLContext.callMethod(threadContext, "no_tlsv1").isTrue()) {
+      protocols.add("TLSv1");
+    }
+    if (!noTLSv1_1) {
+      protocols.add("TLSv1.1");
+    }
+    protocols.add("TLSv1.2");
+    // TLS 1.3 saves a round trip on every full handshake, but older JDKs don't have it
+    if (!miniSSLContext.callMethod(threadContext, "no_tlsv1_3").isTrue() &&
+        Arrays.asList(engine.getSupportedProtocols()).contains("TLSv1.3")) {
+      protocols.add("TLSv1.3");
     }
 
-    engine.setEnabledProtocols(protocols);
+    engine.setEnabledProtocols(protocols.toArray(new String[protocols.size()]));
     engine.setUseClientMode(false);
 
+    IRubyObject alpnProtocols = miniSSLContext.callMethod(threadContext, "alpn_protocols");
+    if (!alpnProtocols.isNil()) {
+      RubyArray<?> alpnArray = alpnProtocols.convertToArray();
+      String[] applicationProtocols = new String[alpnArray.size()];
+      for (int i = 0; i < applicationProtocols.length; i++) {
+        applicationProtocols[i] = alpnArray.eltInternal(i).convertToString().asJavaString();
+      }
+
+      // needs a JDK with ALPN, 9 or later or 8u252 and later
+      SSLParameters parameters = engine.getSSLParameters();
+      try {
+        parameters.setApplicationProtocols(applicationProtocols);
+      } catch (NoSuchMethodError e) {
+        throw threadContext.runtime.newNotImplementedError("alpn_protocols needs a JDK with ALPN, 8u252 or later");
+      }
+      engine.setSSLParameters(parameters);
+      alpn = true;
+    }
+
     long verify_mode = miniSSLContext.callMethod(threadContext, "verify_mode").convertToInteger().getLongValue();
     if ((verify_mode & 0x1) != 0) { // 'peer'
         engine.setWantClientAuth(true);
@@ -188,19 +455,47 @@ public class MiniSSL extends RubyObject {
     }
 
     SSLSession session = engine.getSession();
-    inboundNetData = new MiniSSLBuffer(session.getPacketBufferSize());
+    packetBufferSize = session.getPacketBufferSize();
+    inboundAppData = new MiniSSLBuffer(session.getApplicationBufferSize());
     outboundAppData = new MiniSSLBuffer(session.getApplicationBufferSize());
     outboundAppData.flip();
-    outboundNetData = new MiniSSLBuffer(session.getPacketBufferSize());
 
     return this;
   }
 
+  private MiniSSLBuffer acquireInboundNetData() {
+    if (inboundNetData == null) {
+      inboundNetData = new MiniSSLBuffer(NET_BUFFERS.acquire(packetBufferSize));
+    }
+    return inboundNetData;
+  }
+
+  private void releaseInboundNetData() {
+    if (inboundNetData != null) {
+      NET_BUFFERS.release(inboundNetData.getRawBuffer());
+      inboundNetData = null;
+    }
+  }
+
+  private MiniSSLBuffer acquireOutboundNetData() {
+    if (outboundNetData == null) {
+      outboundNetData = new MiniSSLBuffer(NET_BUFFERS.acquire(packetBufferSize));
+    }
+    return outboundNetData;
+  }
+
+  private void releaseOutboundNetData() {
+    if (outboundNetData != null) {
+      NET_BUFFERS.release(outboundNetData.getRawBuffer());
+      outboundNetData = null;
+    }
+  }
+
   @JRubyMethod
   public IRubyObject inject(IRubyObject arg) {
     try {
       byte[] bytes = arg.convertToString().getBytes();
-      inboundNetData.put(bytes);
+      acquireInboundNetData().put(bytes);
       return this;
     } catch (Exception e) {
       e.printStackTrace();
@@ -219,9 +514,11 @@ public class MiniSSL extends RubyObject {
     while (retryOp) {
       switch (sslOp) {
         case WRAP:
+          WRAPS.increment();
           res = engine.wrap(src.getRawBuffer(), dst.getRawBuffer());
           break;
         case UNWRAP:
+          UNWRAPS.increment();
           res = engine.unwrap(src.getRawBuffer(), dst.getRawBuffer());
           break;
         default:
@@ -230,6 +527,7 @@ public class MiniSSL extends RubyObject {
 
       switch (res.getStatus()) {
         case BUFFER_OVERFLOW:
+          BUFFER_OVERFLOWS.increment();
           // increase the buffer size to accommodate the overflowing data
           int newSize = Math.max(engine.getSession().getPacketBufferSize(), engine.getSession().getApplicationBufferSize());
           dst.resize(newSize + dst.position());
@@ -248,33 +546,101 @@ public class MiniSSL extends RubyObject {
 
     // after each op, run any delegated tasks if needed
     if(engine.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
-      Runnable runnable;
-      while ((runnable = engine.getDelegatedTask()) != null) {
-        runnable.run();
-      }
+      runDelegatedTasks();
     }
 
     return res;
   }
 
+  /**
+   * Runs the engine's delegated tasks inline, or hands them to TASK_EXECUTOR when a completion
+   * callback was set with delegate_tasks. Falls back to running inline when the executor is full.
+   */
+  private void runDelegatedTasks() {
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    Runnable runnable;
+    while ((runnable = engine.getDelegatedTask()) != null) {
+      tasks.add(runnable);
+    }
+
+    final IRubyObject callback = taskCallback;
+    if (callback != null) {
+      taskPending = true;
+      try {
+        TASK_EXECUTOR.execute(new Runnable() {
+          public void run() {
+            try {
+              for (Runnable task : tasks) {
+                task.run();
+              }
+            } finally {
+              taskPending = false;
+              try {
+                callback.callMethod(getRuntime().getCurrentContext(), "call");
+              } catch (Exception e) {
+                e.printStackTrace();
+              }
+            }
+          }
+        });
+        return;
+      } catch (RejectedExecutionException e) {
+        taskPending = false;
+      }
+    }
+
+    for (Runnable task : tasks) {
+      task.run();
+    }
+  }
+
+  /**
+   * Runs delegated tasks, which hold the expensive handshake crypto, on TASK_EXECUTOR instead of
+   * the thread calling read. The block is called from the executor once they are done, and until
+   * then read returns nil. Without a block tasks run inline again.
+   */
   @JRubyMethod
-  public IRubyObject read() throws Exception {
+  public IRubyObject delegate_tasks(Block block) {
+    taskCallback = block.isGiven() ? RubyProc.newProc(getRuntime(), block, Block.Type.PROC) : null;
+    return getRuntime().getNil();
+  }
+
+  @JRubyMethod(name = "task_pending?")
+  public IRubyObject task_pending_p() {
+    return getRuntime().newBoolean(taskPending);
+  }
+
+  @JRubyMethod
+  public IRubyObject read() {
     try {
-      inboundNetData.flip();
+      if (taskPending) {
+        return getRuntime().getNil();
+      }
+
+      // a handshake that continues after delegated tasks may have records to send without any new input
+      boolean needWrap = engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP;
+      if (inboundNetData == null && !needWrap) {
+        return getRuntime().getNil();
+      }
 
-      if(!inboundNetData.hasRemaining()) {
+      acquireInboundNetData().flip();
+
+      if(!inboundNetData.hasRemaining() && !needWrap) {
+        releaseInboundNetData();
         return getRuntime().getNil();
       }
 
-      MiniSSLBuffer inboundAppData = new MiniSSLBuffer(engine.getSession().getApplicationBufferSize());
-      doOp(SSLOperation.UNWRAP, inboundNetData, inboundAppData);
+      inboundAppData.clear();
+      if (inboundNetData.hasRemaining()) {
+        doOp(SSLOperation.UNWRAP, inboundNetData, inboundAppData);
+      }
 
       HandshakeStatus handshakeStatus = engine.getHandshakeStatus();
       boolean done = false;
       while (!done) {
         switch (handshakeStatus) {
           case NEED_WRAP:
-            doOp(SSLOperation.WRAP, inboundAppData, outboundNetData);
+            doOp(SSLOperation.WRAP, NO_APP_DATA, acquireOutboundNetData());
             break;
           case NEED_UNWRAP:
             SSLEngineResult res = doOp(SSLOperation.UNWRAP, inboundNetData, inboundAppData);
@@ -289,10 +655,20 @@ public class MiniSSL extends RubyObject {
         handshakeStatus = engine.getHandshakeStatus();
       }
 
+      if (!handshakeCompleted && handshakeStatus == HandshakeStatus.NOT_HANDSHAKING) {
+        handshakeCompleted = true;
+        HANDSHAKE_NANOS.add(System.nanoTime() - handshakeStartedAt);
+        if (sessionResumed(engine.getSession())) {
+          SESSION_HITS.increment();
+        } else {
+          SESSION_MISSES.increment();
+        }
+      }
+
       if (inboundNetData.hasRemaining()) {
         inboundNetData.compact();
       } else {
-        inboundNetData.clear();
+        releaseInboundNetData();
       }
 
       ByteList appDataByteList = inboundAppData.asByteList();
@@ -308,6 +684,26 @@ public class MiniSSL extends RubyObject {
     }
   }
 
+  /**
+   * Whether the handshake that just completed resumed a session from an earlier handshake rather
+   * than negotiating a new one. Marks the session so the handshakes that resume it can tell.
+   */
+  private boolean sessionResumed(SSLSession session) {
+    // resumed from the server's session cache, it's the very session an earlier handshake marked
+    if (session.getValue(SESSION_SEEN) != null) {
+      return true;
+    }
+    session.putValue(SESSION_SEEN, Boolean.TRUE);
+
+    // a TLS 1.2 session ticket comes back as a new session object with the same ID
+    if (seenSessionIds.add(session.getId())) {
+      return true;
+    }
+
+    // a TLS 1.3 ticket gets a new ID too, only the creation time of the session it came from is kept
+    return session.getCreationTime() < createdAt;
+  }
+
   @JRubyMethod
   public IRubyObject write(IRubyObject arg) {
     try {
@@ -321,10 +717,234 @@ public class MiniSSL extends RubyObject {
     }
   }
 
+  /**
+   * Encrypts every string in parts and returns all of the resulting records as one string. The parts
+   * are gathered straight from the strings' bytes, so small parts share records instead of each
+   * getting their own.
+   */
+  @JRubyMethod
+  public IRubyObject write_all(ThreadContext context, IRubyObject parts) {
+    ByteBuffer[] srcs = toBuffers(parts.convertToArray());
+    long remaining = remaining(srcs);
+
+    // room for the plaintext plus a generous per record overhead, the ByteList grows if that's short
+    ByteList encrypted = new ByteList((int) Math.min(remaining + (remaining / 16384 + 1) * 128, Integer.MAX_VALUE));
+    try {
+      wrapAll(srcs, remaining, encrypted);
+    } catch (IOException e) {
+      throw context.runtime.newIOErrorFromException(e);
+    }
+
+    return RubyString.newString(context.runtime, encrypted);
+  }
+
+  private static ByteBuffer[] toBuffers(RubyArray<?> parts) {
+    ByteBuffer[] srcs = new ByteBuffer[parts.size()];
+    for (int i = 0; i < srcs.length; i++) {
+      ByteList bytes = parts.eltInternal(i).convertToString().getByteList();
+      srcs[i] = ByteBuffer.wrap(bytes.unsafeBytes(), bytes.begin(), bytes.realSize());
+    }
+    return srcs;
+  }
+
+  private static long remaining(ByteBuffer[] srcs) {
+    long remaining = 0;
+    for (ByteBuffer src : srcs) {
+      remaining += src.remaining();
+    }
+    return remaining;
+  }
+
+  /**
+   * Wraps all of srcs, appending the records to encrypted or, when that's null, writing them to the
+   * attached channel as they are produced. Fails with an SSLException when the engine can't make
+   * progress without reading from the peer first, like during a renegotiation.
+   */
+  private void wrapAll(ByteBuffer[] srcs, long remaining, ByteList encrypted) throws IOException {
+    MiniSSLBuffer dst = acquireOutboundNetData();
+    try {
+      // anything left from an earlier extract goes first
+      drain(dst, encrypted);
+
+      while (remaining > 0) {
+        WRAPS.increment();
+        SSLEngineResult res = engine.wrap(srcs, dst.getRawBuffer());
+        switch (res.getStatus()) {
+          case OK:
+            break;
+          case BUFFER_OVERFLOW:
+            BUFFER_OVERFLOWS.increment();
+            dst.resize(Math.max(engine.getSession().getPacketBufferSize(), dst.getRawBuffer().capacity() * 2));
+            continue;
+          default:
+            throw new SSLException("Unable to wrap response: " + res.getStatus());
+        }
+
+        remaining -= res.bytesConsumed();
+        drain(dst, encrypted);
+
+        // a TLS 1.3 KeyUpdate or a renegotiation can interrupt the application data
+        if (res.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+          // the caller needs the records now, so the tasks can't go to TASK_EXECUTOR
+          Runnable task;
+          while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+          }
+        } else if (res.bytesConsumed() == 0 && res.bytesProduced() == 0) {
+          throw new SSLException("Unable to wrap response, engine is in " + res.getHandshakeStatus());
+        }
+      }
+    } finally {
+      releaseOutboundNetData();
+    }
+  }
+
+  private void drain(MiniSSLBuffer buffer, ByteList encrypted) throws IOException {
+    if (encrypted != null) {
+      buffer.drainTo(encrypted);
+    } else {
+      writeToChannel(buffer);
+    }
+  }
+
+  /**
+   * Hands the engine the socket's channel so that ciphertext moves straight between it and the
+   * engine's buffers, and only plaintext crosses into Ruby. Returns false if io has no
+   * SocketChannel, in which case nothing changes.
+   *
+   * The channel is left in non-blocking mode for good, read_channel relies on it to return
+   * :wait_readable and write_channel waits on a selector when the socket is full. From here on
+   * all reads and writes must go through the engine, io is only used to wait, close and the like.
+   */
+  @JRubyMethod
+  public IRubyObject attach(ThreadContext context, IRubyObject io) {
+    if (io instanceof RubyIO) {
+      Channel ioChannel = ((RubyIO) io).getChannel();
+      if (ioChannel instanceof SocketChannel) {
+        try {
+          ((SocketChannel) ioChannel).configureBlocking(false);
+        } catch (IOException e) {
+          throw context.runtime.newIOErrorFromException(e);
+        }
+        channel = (SocketChannel) ioChannel;
+        return context.runtime.getTrue();
+      }
+    }
+    return context.runtime.getFalse();
+  }
+
+  /**
+   * Reads whatever ciphertext the attached channel has without blocking, sends any handshake
+   * records it produced and returns the decrypted data. Returns :wait_readable when there's
+   * nothing to return yet and nil once the peer has closed the connection.
+   */
+  @JRubyMethod
+  public IRubyObject read_channel(ThreadContext context) {
+    Ruby runtime = context.runtime;
+    try {
+      while (true) {
+        ByteList plaintext = null;
+        while (true) {
+          int buffered = inboundNetData == null ? 0 : inboundNetData.position();
+          IRubyObject output = read();
+          int left = inboundNetData == null ? 0 : inboundNetData.position();
+
+          if (!output.isNil()) {
+            if (plaintext == null) {
+              plaintext = ((RubyString) output).getByteList();
+            } else {
+              plaintext.append(((RubyString) output).getByteList());
+            }
+          } else if (left == 0 || left >= buffered) {
+            // nothing more can be unwrapped until more data comes in
+            break;
+          }
+        }
+
+        if (outboundNetData != null) {
+          writeToChannel(outboundNetData);
+          releaseOutboundNetData();
+        }
+
+        if (plaintext != null) {
+          return RubyString.newString(runtime, plaintext);
+        }
+        if (taskPending) {
+          return runtime.newSymbol("wait_readable");
+        }
+
+        MiniSSLBuffer in = acquireInboundNetData();
+        if (!in.getRawBuffer().hasRemaining()) {
+          in.resize(in.getRawBuffer().capacity() * 2);
+        }
+
+        int read = channel.read(in.getRawBuffer());
+        if (read <= 0 && in.position() == 0) {
+          releaseInboundNetData();
+        }
+        if (read < 0) {
+          return runtime.getNil();
+        }
+        if (read == 0) {
+          return runtime.newSymbol("wait_readable");
+        }
+      }
+    } catch (IOException e) {
+      throw runtime.newIOErrorFromException(e);
+    }
+  }
+
+  /**
+   * Encrypts data, a string or an array of strings, and writes it to the attached channel, waiting
+   * for the socket to drain when it's full. Returns the number of plaintext bytes written.
+   */
+  @JRubyMethod
+  public IRubyObject write_channel(ThreadContext context, IRubyObject data) {
+    Ruby runtime = context.runtime;
+    RubyArray<?> parts = data instanceof RubyArray ? (RubyArray<?>) data : RubyArray.newArray(runtime, data);
+    ByteBuffer[] srcs = toBuffers(parts);
+    long remaining = remaining(srcs);
+
+    try {
+      wrapAll(srcs, remaining, null);
+    } catch (IOException e) {
+      throw runtime.newIOErrorFromException(e);
+    }
+
+    return runtime.newFixnum(remaining);
+  }
+
+  private void writeToChannel(MiniSSLBuffer buffer) throws IOException {
+    buffer.flip();
+    ByteBuffer raw = buffer.getRawBuffer();
+    try {
+      while (raw.hasRemaining()) {
+        if (channel.write(raw) == 0) {
+          awaitWritable();
+        }
+      }
+    } finally {
+      buffer.clear();
+    }
+  }
+
+  private void awaitWritable() throws IOException {
+    SelectorPool pool = getRuntime().getSelectorPool();
+    Selector selector = pool.get(channel.provider());
+    try {
+      channel.register(selector, SelectionKey.OP_WRITE);
+      if (selector.select(WRITE_TIMEOUT) == 0) {
+        throw new IOException("Socket timeout writing data");
+      }
+    } finally {
+      pool.put(selector);
+    }
+  }
+
   @JRubyMethod
   public IRubyObject extract() throws SSLException {
     try {
-      ByteList dataByteList = outboundNetData.asByteList();
+      ByteList dataByteList = outboundNetData == null ? null : outboundNetData.asByteList();
       if (dataByteList != null) {
         RubyString str = getRuntime().newString("");
         str.setValue(dataByteList);
@@ -332,13 +952,15 @@ public class MiniSSL extends RubyObject {
       }
 
       if (!outboundAppData.hasRemaining()) {
+        releaseOutboundNetData();
         return getRuntime().getNil();
       }
 
-      outboundNetData.clear();
+      acquireOutboundNetData().clear();
       doOp(SSLOperation.WRAP, outboundAppData, outboundNetData);
       dataByteList = outboundNetData.asByteList();
       if (dataByteList == null) {
+        releaseOutboundNetData();
         return getRuntime().getNil();
       }
 
@@ -352,6 +974,22 @@ public class MiniSSL extends RubyObject {
     }
   }
 
+  /**
+   * Returns the protocol the client picked through ALPN, or nil if there wasn't one. Always nil
+   * when the context has no alpn_protocols, so JDKs without ALPN never get to the call.
+   */
+  @JRubyMethod
+  public IRubyObject alpn_protocol() {
+    if (!alpn) {
+      return getRuntime().getNil();
+    }
+    String protocol = engine.getApplicationProtocol();
+    if (protocol == null || protocol.isEmpty()) {
+      return getRuntime().getNil();
+    }
+    return getRuntime().newString(protocol);
+  }
+
   @JRubyMethod
   public IRubyObject peercert() throws CertificateEncodingException {
     try {
@@ -0,0 +1,104 @@
+package org.jruby.puma;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.jruby.Ruby;
+import org.jruby.RubyModule;
+import org.jruby.RubyThread;
+
+import org.jruby.anno.JRubyMethod;
+
+import org.jruby.exceptions.RaiseException;
+import org.jruby.exceptions.ThreadKill;
+
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Starts Ruby threads on Java virtual threads, for the thread pool's virtual_threads mode.
+ * A thread that blocks on a socket or a lock then parks without holding on to an OS thread.
+ * Virtual threads need JDK 21, the extension is built for older JDKs so they are looked up
+ * reflectively.
+ */
+public class VirtualThreads {
+    private static final MethodHandle OF_VIRTUAL;
+    private static final MethodHandle START;
+    static {
+        MethodHandle ofVirtual = null;
+        MethodHandle start = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = lookup.findStatic(Thread.class, "ofVirtual",
+                MethodType.methodType(Class.forName("java.lang.Thread$Builder$OfVirtual")));
+            start = lookup.findVirtual(builder, "start", MethodType.methodType(Thread.class, Runnable.class));
+        } catch (ReflectiveOperationException e) {
+            // JDK 20 or older
+        }
+        OF_VIRTUAL = ofVirtual;
+        START = start;
+    }
+
+    public static void createVirtualThreads(Ruby runtime) {
+        RubyModule mPuma = runtime.defineModule("Puma");
+        RubyModule mVirtualThreads = mPuma.defineModuleUnder("VirtualThreads");
+        mVirtualThreads.defineAnnotatedMethods(VirtualThreads.class);
+    }
+
+    @JRubyMethod(name = "supported?", meta = true)
+    public static IRubyObject supported_p(ThreadContext context, IRubyObject self) {
+        return context.runtime.newBoolean(START != null);
+    }
+
+    /**
+     * Like Thread.new, runs the block with args on a new virtual thread and returns its Thread.
+     */
+    @JRubyMethod(meta = true, rest = true)
+    public static IRubyObject start(ThreadContext context, IRubyObject self, final IRubyObject[] args, final Block block) {
+        final Ruby runtime = context.runtime;
+
+        if (START == null) {
+            throw runtime.newNotImplementedError("virtual threads need JDK 21 or later");
+        }
+        if (!block.isGiven()) {
+            throw runtime.newThreadError("must be called with a block");
+        }
+
+        final CompletableFuture<RubyThread> started = new CompletableFuture<RubyThread>();
+
+        Runnable body = new Runnable() {
+            public void run() {
+                // the runtime adopts this thread, giving it a Ruby Thread of its own
+                ThreadContext threadContext = runtime.getCurrentContext();
+                RubyThread thread = threadContext.getThread();
+                started.complete(thread);
+
+                try {
+                    block.call(threadContext, args);
+                } catch (ThreadKill e) {
+                    // Thread#kill, the thread just ends
+                } catch (RaiseException e) {
+                    thread.exceptionRaised(e);
+                } finally {
+                    thread.dispose();
+                    runtime.getThreadService().unregisterCurrentThread(threadContext);
+                }
+            }
+        };
+
+        try {
+            START.invoke(OF_VIRTUAL.invoke(), body);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw runtime.newThreadError("unable to start a virtual thread: " + t);
+        }
+
+        return started.join();
+    }
+}
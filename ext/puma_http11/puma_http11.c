@@ -12,6 +12,7 @@
 #include <string.h>
 #include <ctype.h>
 #include "http11_parser.h"
+#include "chunked_decoder.h"
 
 #ifndef MANAGED_STRINGS
 
@@ -434,6 +435,87 @@ VALUE HttpParser_body(VALUE self) {
   return http->body;
 }
 
+static ID id_write;
+
+struct chunked_write {
+  VALUE data;
+  VALUE io;
+  const char *start;
+};
+
+static void chunked_data(void *data, const char *at, size_t length)
+{
+  struct chunked_write *out = (struct chunked_write *) data;
+  rb_funcall(out->io, id_write, 1, rb_str_subseq(out->data, at - out->start, length));
+}
+
+void ChunkedDecoder_free(void *data) {
+  TRACE();
+
+  if(data) {
+    xfree(data);
+  }
+}
+
+VALUE ChunkedDecoder_alloc(VALUE klass)
+{
+  puma_chunked_decoder *decoder = ALLOC_N(puma_chunked_decoder, 1);
+  TRACE();
+  puma_chunked_decoder_init(decoder);
+
+  return Data_Wrap_Struct(klass, NULL, ChunkedDecoder_free, decoder);
+}
+
+/**
+ * call-seq:
+ *    decoder.reset -> nil
+ *
+ * Gets the decoder ready for the next chunked body.
+ */
+VALUE ChunkedDecoder_reset(VALUE self)
+{
+  puma_chunked_decoder *decoder = NULL;
+  DATA_GET(self, puma_chunked_decoder, decoder);
+  puma_chunked_decoder_init(decoder);
+
+  return Qnil;
+}
+
+/**
+ * call-seq:
+ *    decoder.decode(data, io) -> nil or String
+ *
+ * Decodes the next piece of a chunked body, writing the payload to io as it goes.
+ * Returns nil while the body continues. Once it is complete, returns whatever
+ * followed it in data, which belongs to the next request. Raises HttpParserError
+ * for a malformed body.
+ */
+VALUE ChunkedDecoder_decode(VALUE self, VALUE data, VALUE io)
+{
+  puma_chunked_decoder *decoder = NULL;
+  struct chunked_write out;
+  size_t used = 0;
+  long len = 0;
+
+  DATA_GET(self, puma_chunked_decoder, decoder);
+  StringValue(data);
+
+  len = RSTRING_LEN(data);
+  out.data = data;
+  out.io = io;
+  out.start = RSTRING_PTR(data);
+
+  used = puma_chunked_decoder_execute(decoder, out.start, len, chunked_data, &out);
+
+  if(puma_chunked_decoder_has_error(decoder)) {
+    rb_raise(eHttpParserError, "%s", "Invalid chunked encoding in the request body.");
+  } else if(puma_chunked_decoder_is_finished(decoder)) {
+    return rb_str_subseq(data, used, len - used);
+  }
+
+  return Qnil;
+}
+
 void Init_mini_ssl(VALUE mod);
 
 void Init_puma_http11()
@@ -441,6 +523,7 @@ void Init_puma_http11()
 
   VALUE mPuma = rb_define_module("Puma");
   VALUE cHttpParser = rb_define_class_under(mPuma, "HttpParser", rb_cObject);
+  VALUE cChunkedDecoder = rb_define_class_under(mPuma, "ChunkedDecoder", rb_cObject);
 
   DEF_GLOBAL(request_method, "REQUEST_METHOD");
   DEF_GLOBAL(request_uri, "REQUEST_URI");
@@ -463,5 +546,11 @@ void Init_puma_http11()
   rb_define_method(cHttpParser, "body", HttpParser_body, 0);
   init_common_fields();
 
+  id_write = rb_intern("write");
+
+  rb_define_alloc_func(cChunkedDecoder, ChunkedDecoder_alloc);
+  rb_define_method(cChunkedDecoder, "reset", ChunkedDecoder_reset, 0);
+  rb_define_method(cChunkedDecoder, "decode", ChunkedDecoder_decode, 2);
+
   Init_mini_ssl(mPuma);
 }
@@ -0,0 +1,148 @@
+# frozen_string_literal: true
+
+require 'thread'
+
+module Puma
+  # Internal Docs, Not a public interface.
+  #
+  # The work queue of a `Puma::ThreadPool` created with `affinity: true`, see
+  # `Puma::DSL#thread_affinity`. It has the parts of the `Thread::Queue`
+  # interface the pool uses.
+  #
+  # Work is handed straight to an idle thread, preferring the one that took
+  # the same object last time. A keep-alive connection that comes back from
+  # the reactor then lands on the thread whose CPU cache still holds its
+  # client, parser and buffers. When that thread is busy, the thread that went
+  # idle most recently takes it instead.
+  #
+  # Work that finds no idle thread is queued, and the first thread to finish
+  # takes it, whichever thread that is. So nothing waits behind a busy thread
+  # the way it would in a per-thread queue. That's the work stealing, done
+  # before the work is queued instead of after.
+  #
+  # Threads only remember the +object_id+ of their last work, so a finished
+  # client and its buffers aren't kept alive by an idle thread. Idle threads
+  # are indexed by it, and handing out work takes constant time however many
+  # threads are idle.
+  class AffinityQueue
+    class Waiter
+      def initialize
+        @ready = ConditionVariable.new
+        @last = nil
+        @work = NONE
+        @idle = false
+      end
+
+      attr_reader :ready
+      attr_accessor :last, :work, :idle
+    end
+
+    NONE = Object.new.freeze
+    private_constant :Waiter, :NONE
+
+    def initialize
+      @mutex = Mutex.new
+      @queued = []
+      # idle waiters, most recent last. Waiters that were handed work by
+      # @by_last stay in here until they are popped or compacted away.
+      @idle = []
+      @idle_count = 0
+      @by_last = {}
+      @waiters = {}
+    end
+
+    def size
+      @queued.size
+    end
+
+    alias_method :length, :size
+
+    def num_waiting
+      @idle_count
+    end
+
+    def push(work)
+      @mutex.synchronize do
+        waiter = @by_last[work.object_id]
+
+        unless waiter
+          while (waiter = @idle.pop) && !waiter.idle
+          end
+        end
+
+        if waiter
+          busy waiter
+          waiter.work = work
+          waiter.ready.signal
+        else
+          @queued << work
+        end
+      end
+
+      self
+    end
+
+    alias_method :<<, :push
+
+    def pop
+      @mutex.synchronize do
+        waiter = @waiters[Thread.current] || add_waiter
+
+        if @queued.empty?
+          idle waiter
+          begin
+            waiter.ready.wait @mutex while NONE.equal?(waiter.work)
+          ensure
+            busy waiter if waiter.idle
+          end
+
+          work = waiter.work
+          waiter.work = NONE
+        else
+          work = @queued.shift
+        end
+
+        waiter.last = work.object_id
+        work
+      end
+    end
+
+    private
+
+    # Must be called with @mutex held!
+    #
+    def idle(waiter)
+      # drop the entries left behind by waiters that got work by @by_last
+      compact_idle if @idle.size > 2 * @waiters.size
+
+      waiter.idle = true
+      @idle << waiter
+      @idle_count += 1
+      @by_last[waiter.last] = waiter if waiter.last
+    end
+
+    # Must be called with @mutex held!
+    #
+    def busy(waiter)
+      waiter.idle = false
+      @idle_count -= 1
+      @by_last.delete waiter.last if @by_last[waiter.last].equal?(waiter)
+    end
+
+    # Must be called with @mutex held!
+    #
+    def compact_idle
+      @idle.reverse!
+      @idle.uniq!
+      @idle.select!(&:idle)
+      @idle.reverse!
+    end
+
+    # Must be called with @mutex held!
+    #
+    def add_waiter
+      @waiters.delete_if { |thread, _| !thread.alive? }
+      @waiters[Thread.current] = Waiter.new
+    end
+  end
+end
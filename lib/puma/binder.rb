@@ -58,6 +58,10 @@ module Puma
       ios.map { |io| io.addr[1] }.uniq
     end
 
+    def ssl?
+      listeners.any? { |l, _| l.start_with? 'ssl://' }
+    end
+
     def create_inherited_fds(env_hash)
       env_hash.select {|k,v| k =~ /PUMA_INHERIT_\d+/}.each do |_k, v|
         fd, url = v.split(":", 2)
@@ -11,6 +11,7 @@ end
 require 'puma/detect'
 require 'tempfile'
 require 'forwardable'
+require 'puma/streaming_body'
 
 if Puma::IS_JRUBY
   # We have to work around some OpenSSL buffer/io-readiness bugs
@@ -40,6 +41,14 @@ module Puma
     # no body share this one object since it has no state.
     EmptyBody = NullIO.new
 
+    # String.new only takes a capacity from Ruby 2.4
+    STRING_CAPACITY = begin
+      String.new(capacity: 0)
+      true
+    rescue ArgumentError
+      false
+    end
+
     include Puma::Const
     extend Forwardable
 
@@ -73,11 +82,22 @@ module Puma
 
       @body_remain = 0
 
-      @in_last_chunk = false
+      @chunked_decoder = nil
+
+      @stream_paths = nil
+      @streaming = false
+
+      @max_body = MAX_BODY
+      @tempfile_dir = nil
+
+      # CLOCK_MONOTONIC times for Puma::LatencyStats, a new connection
+      # starts its first request and waits for a thread straight away
+      @started_at = @queued_at = Process.clock_gettime(Process::CLOCK_MONOTONIC)
+      @queue_time = 0.0
     end
 
     attr_reader :env, :to_io, :body, :io, :timeout_at, :ready, :hijacked,
-                :tempfile
+                :tempfile, :started_at, :queue_time
 
     attr_writer :peerip
 
@@ -100,10 +120,68 @@ module Puma
       !@read_header
     end
 
+    # Called when the client is handed to the thread pool.
+    def queued!
+      @queued_at = Process.clock_gettime(Process::CLOCK_MONOTONIC)
+    end
+
+    # Called when a thread takes the client from the thread pool, adds the
+    # time it waited to #queue_time.
+    def dequeued!
+      return unless @queued_at
+      @queue_time += Process.clock_gettime(Process::CLOCK_MONOTONIC) - @queued_at
+      @queued_at = nil
+    end
+
     def set_timeout(val)
       @timeout_at = Time.now + val
     end
 
+    # Streams request bodies to the app rather than buffering them, see
+    # Puma::DSL#stream_request_body. +paths+ is true for every request or
+    # the path prefixes to stream. Reads give up after +timeout+ seconds.
+    def set_stream_body(paths, timeout)
+      @stream_paths = paths
+      @stream_timeout = timeout
+    end
+
+    # Bodies with more than +max_body+ bytes to read are written to a
+    # Tempfile in +tempfile_dir+, or the system default when it's nil,
+    # see Puma::DSL#max_body_in_memory and Puma::DSL#body_tempfile_dir.
+    def set_body_buffering(max_body, tempfile_dir)
+      @max_body = max_body if max_body
+      @tempfile_dir = tempfile_dir
+    end
+
+    # True while part of a streamed body is still on the socket
+    def streaming?
+      @streaming
+    end
+
+    # Reads the next part of a streamed body from the socket and writes it
+    # to the StreamingBody. Returns false once the whole body has been read.
+    def read_streamed_body
+      return false unless @streaming
+
+      want = @chunked_body || @body_remain > CHUNK_SIZE ? CHUNK_SIZE : @body_remain
+
+      begin
+        chunk = @io.read_nonblock(want)
+      rescue IO::WaitReadable
+        unless IO.select([@to_io], nil, nil, @stream_timeout)
+          raise ConnectionError, "Timed out waiting for the request body"
+        end
+        retry
+      rescue SystemCallError, IOError
+        raise ConnectionError, "Connection error detected during read"
+      end
+
+      raise ConnectionError, "Connection closed before the request body was read" unless chunk
+
+      stream_part chunk
+      true
+    end
+
     def reset(fast_check=true)
       @parser.reset
       @read_header = true
@@ -114,8 +192,13 @@ module Puma
       @ready = false
       @body_remain = 0
       @peerip = nil
-      @in_last_chunk = false
+      @streaming = false
+      @started_at = nil
+      @queued_at = nil
+      @queue_time = 0.0
 
+      # Pipelined requests that are already buffered are parsed straight
+      # away, so the server can serve them without going back to the reactor.
       if @buffer
         @parsed_bytes = @parser.execute(@env, @buffer, @parsed_bytes)
 
@@ -125,19 +208,12 @@ module Puma
           raise HttpParserError,
             "HEADER is longer than allowed, aborting client early."
         end
-
-        return false
-      else
-        begin
-          if fast_check &&
-              IO.select([@to_io], nil, nil, FAST_TRACK_KA_TIMEOUT)
-            return try_to_finish
-          end
-        rescue IOError
-          # swallow it
-        end
-
       end
+
+      # Anything the client has already sent is read without waiting. If
+      # the next request isn't complete yet it's left to the reactor rather
+      # than holding a thread while it arrives.
+      fast_check ? try_to_finish : false
     end
 
     def close
@@ -166,6 +242,11 @@ module Puma
         raise EOFError
       end
 
+      # the next request on a keep-alive connection starts with its first bytes
+      @started_at ||= Process.clock_gettime(Process::CLOCK_MONOTONIC)
+
+      # On JRuby the env values may share bytes with @buffer, so it must
+      # only ever be appended to, never modified in place.
       if @buffer
         @buffer << data
       else
@@ -202,6 +283,8 @@ module Puma
           raise EOFError
         end
 
+        @started_at ||= Process.clock_gettime(Process::CLOCK_MONOTONIC)
+
         if @buffer
           @buffer << data
         else
@@ -306,19 +389,32 @@ module Puma
         return true
       end
 
-      remain = cl.to_i - body.bytesize
+      content_length = cl.to_i
+      remain = content_length - body.bytesize
 
       if remain <= 0
+        # Anything past the body is the next pipelined request
+        if remain < 0
+          @buffer = body.byteslice(content_length, -remain)
+          body = body.byteslice(0, content_length)
+        else
+          @buffer = nil
+        end
         @body = StringIO.new(body)
-        @buffer = nil
         set_ready
         return true
       end
 
-      if remain > MAX_BODY
-        @body = Tempfile.new(Const::PUMA_TMP_BASE)
-        @body.binmode
-        @tempfile = @body
+      if stream_body?
+        @body_remain = content_length
+        return setup_streamed_body(body)
+      end
+
+      if remain > @max_body
+        @body = new_tempfile
+      elsif STRING_CAPACITY
+        # Sized for the whole body, so it never has to grow while it's read
+        @body = StringIO.new String.new(capacity: content_length, encoding: body.encoding)
       else
         # The body[0,0] trick is to get an empty string in the same
         # encoding as body.
@@ -332,6 +428,43 @@ module Puma
       return false
     end
 
+    def stream_body?
+      return false unless @stream_paths
+      return true if @stream_paths == true
+
+      path = @env[REQUEST_PATH]
+      path && @stream_paths.any? { |prefix| path.start_with? prefix }
+    end
+
+    # The request is ready as soon as the headers are in, the app reads the
+    # body through StreamingBody, which calls read_streamed_body
+    def setup_streamed_body(body)
+      @body = StreamingBody.new(self)
+      @buffer = nil
+      @streaming = true
+      stream_part body
+      set_ready
+      true
+    end
+
+    def stream_part(data)
+      if @chunked_body
+        if rest = @chunked_decoder.decode(data, @body)
+          @buffer = rest.empty? ? nil : rest
+          @streaming = false
+        end
+      else
+        # Anything past the body is the next pipelined request, SSL sockets
+        # can return more than was asked for
+        if data.bytesize > @body_remain
+          @buffer = data.byteslice(@body_remain, data.bytesize - @body_remain)
+          data = data.byteslice(0, @body_remain)
+        end
+        @body_remain -= @body.write(data)
+        @streaming = false if @body_remain <= 0
+      end
+    end
+
     def read_body
       if @chunked_body
         return read_chunked_body
@@ -380,7 +513,7 @@ module Puma
     def read_chunked_body
       while true
         begin
-          chunk = @io.read_nonblock(4096)
+          chunk = @io.read_nonblock(CHUNK_SIZE)
         rescue IO::WaitReadable
           return false
         rescue SystemCallError, IOError
@@ -401,98 +534,38 @@ module Puma
 
     def setup_chunked_body(body)
       @chunked_body = true
-      @partial_part_left = 0
-      @prev_chunk = ""
+      @chunked_decoder ||= ChunkedDecoder.new
+      @chunked_decoder.reset
 
-      @body = Tempfile.new(Const::PUMA_TMP_BASE)
-      @body.binmode
-      @tempfile = @body
+      return setup_streamed_body(body) if stream_body?
+
+      @body = new_tempfile
 
       return decode_chunk(body)
     end
 
-    def decode_chunk(chunk)
-      if @partial_part_left > 0
-        if @partial_part_left <= chunk.size
-          if @partial_part_left > 2
-            @body << chunk[0..(@partial_part_left-3)] # skip the \r\n
-          end
-          chunk = chunk[@partial_part_left..-1]
-          @partial_part_left = 0
-        else
-          @body << chunk if @partial_part_left > 2 # don't include the last \r\n
-          @partial_part_left -= chunk.size
-          return false
-        end
-      end
-
-      if @prev_chunk.empty?
-        io = StringIO.new(chunk)
-      else
-        io = StringIO.new(@prev_chunk+chunk)
-        @prev_chunk = ""
-      end
+    def new_tempfile
+      @tempfile = Tempfile.new(Const::PUMA_TMP_BASE, @tempfile_dir || Dir.tmpdir)
+      @tempfile.binmode
+      @tempfile
+    end
 
-      while !io.eof?
-        line = io.gets
-        if line.end_with?("\r\n")
-          len = line.strip.to_i(16)
-          if len == 0
-            @in_last_chunk = true
-            @body.rewind
-            rest = io.read
-            last_crlf_size = "\r\n".bytesize
-            if rest.bytesize < last_crlf_size
-              @buffer = nil
-              @partial_part_left = last_crlf_size - rest.bytesize
-              return false
-            else
-              @buffer = rest[last_crlf_size..-1]
-              @buffer = nil if @buffer.empty?
-              set_ready
-              return true
-            end
-          end
-
-          len += 2
-
-          part = io.read(len)
-
-          unless part
-            @partial_part_left = len
-            next
-          end
-
-          got = part.size
-
-          case
-          when got == len
-            @body << part[0..-3] # to skip the ending \r\n
-          when got <= len - 2
-            @body << part
-            @partial_part_left = len - part.size
-          when got == len - 1 # edge where we get just \r but not \n
-            @body << part[0..-2]
-            @partial_part_left = len - part.size
-          end
-        else
-          @prev_chunk = line
-          return false
-        end
-      end
+    def decode_chunk(chunk)
+      rest = @chunked_decoder.decode(chunk, @body)
+      return false unless rest
 
-      if @in_last_chunk
-        set_ready
-        true
-      else
-        false
-      end
+      @body.rewind
+      @buffer = rest.empty? ? nil : rest
+      set_ready
+      true
     end
 
     def set_ready
       if @body_read_start
         @env['puma.request_body_wait'] = Process.clock_gettime(Process::CLOCK_MONOTONIC, :millisecond) - @body_read_start
       end
+      # a pipelined request that was already buffered starts now
+      @started_at ||= Process.clock_gettime(Process::CLOCK_MONOTONIC)
       @requests_served += 1
       @ready = true
     end
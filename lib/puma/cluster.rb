@@ -3,7 +3,9 @@
 require 'puma/runner'
 require 'puma/util'
 require 'puma/plugin'
+require 'puma/latency_stats'
 
+require 'json'
 require 'time'
 
 module Puma
@@ -94,11 +96,7 @@ module Puma
 
       def ping!(status)
         @last_checkin = Time.now
-        captures = status.match(/{ "backlog":(?<backlog>\d*), "running":(?<running>\d*), "pool_capacity":(?<pool_capacity>\d*), "max_threads": (?<max_threads>\d*), "requests_count": (?<requests_count>\d*) }/)
-        @last_status = captures.names.inject({}) do |hash, key|
-          hash[key.to_sym] = captures[key].to_i
-          hash
-        end
+        @last_status = JSON.parse(status, symbolize_names: true)
       end
 
       def ping_timeout?(which)
@@ -292,13 +290,7 @@ module Puma
         while true
           sleep Const::WORKER_CHECK_INTERVAL
           begin
-            b = server.backlog || 0
-            r = server.running || 0
-            t = server.pool_capacity || 0
-            m = server.max_threads || 0
-            rc = server.requests_count || 0
-            payload = %Q!#{base_payload}{ "backlog":#{b}, "running":#{r}, "pool_capacity":#{t}, "max_threads": #{m}, "requests_count": #{rc} }\n!
-            io << payload
+            io << "#{base_payload}#{server.stats.to_json}\n"
           rescue IOError
             Thread.current.purge_interrupt_queue if Thread.current.respond_to? :purge_interrupt_queue
             break
@@ -375,6 +367,7 @@ module Puma
         phase: @phase,
         booted_workers: worker_status.count { |w| w[:booted] },
         old_workers: old_worker_count,
+        latency: LatencyStats.merge(@workers.map { |w| w.last_status[:latency] }),
         worker_status: worker_status,
       }
     end
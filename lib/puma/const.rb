@@ -104,6 +104,8 @@ module Puma
     CODE_NAME = "Mysterious Traveller".freeze
     PUMA_SERVER_STRING = ['puma', PUMA_VERSION, CODE_NAME].join(' ').freeze
 
+    # Deprecated, no longer used. Keep-alive connections go back to the
+    # reactor between requests instead of waiting this long on a thread.
     FAST_TRACK_KA_TIMEOUT = 0.2
 
     # The default number of seconds for another request within a persistent
@@ -119,10 +121,12 @@ module Puma
     WRITE_TIMEOUT = 10
 
     # How many requests to attempt inline before sending a client back to
-    # the reactor to be subject to normal ordering. The idea here is that
-    # we amortize the cost of going back to the reactor for a well behaved
-    # but very "greedy" client across 10 requests. This prevents a not
-    # well behaved client from monopolizing the thread forever.
+    # the reactor to be subject to normal ordering, while other clients are
+    # waiting for a thread. The idea here is that we amortize the cost of
+    # going back to the reactor for a well behaved but very "greedy" client
+    # across 10 requests. This prevents a not well behaved client from
+    # monopolizing the thread forever. With no one waiting, it is served
+    # inline for as long as its requests keep arriving.
     MAX_FAST_INLINE = 10
 
     # The original URI requested by the client.
@@ -204,6 +204,30 @@ module Puma
       @options[:first_data_timeout] = Integer(seconds)
     end
 
+    # Request bodies with more than this many bytes left to read once the
+    # headers are in are written to a tempfile, smaller ones are kept in
+    # memory.
+    #
+    # The default is 112KB (Puma::Const::MAX_BODY).
+    #
+    # @example
+    #   max_body_in_memory 1024 * 1024
+    def max_body_in_memory(bytes)
+      @options[:max_body_in_memory] = Integer(bytes)
+    end
+
+    # The directory request bodies are spilled to once they are larger
+    # than +max_body_in_memory+. A tmpfs mount such as /dev/shm keeps them
+    # off the disk.
+    #
+    # The default is the system temp directory.
+    #
+    # @example
+    #   body_tempfile_dir '/dev/shm'
+    def body_tempfile_dir(dir)
+      @options[:body_tempfile_dir] = dir.to_s
+    end
+
     # Work around leaky apps that leave garbage in Thread locals
     # across requests.
     def clean_thread_locals(which=true)
@@ -373,7 +397,12 @@ module Puma
     #     ssl_cipher_filter: cipher_filter, # optional
     #     verify_mode: verify_mode,         # default 'none'
     #     keystore: path_to_keystore,
-    #     keystore_pass: password
+    #     keystore_pass: password,
+    #     ssl_session_cache_size: 20480, # optional, number of sessions kept for resumption
+    #     ssl_session_timeout: 86400,    # optional, in seconds
+    #     direct_io: true,               # optional, encrypt straight to and from the socket
+    #     no_tlsv1_3: false,             # optional, TLSv1.3 is used when the JDK supports it
+    #     alpn_protocols: ['http/1.1']   # optional, offered through ALPN in order of preference
     #   }
     def ssl_bind(host, port, opts)
       verify = opts.fetch(:verify_mode, 'none').to_s
@@ -383,6 +412,11 @@ module Puma
 
       if defined?(JRUBY_VERSION)
         keystore_additions = "keystore=#{opts[:keystore]}&keystore-pass=#{opts[:keystore_pass]}"
+        keystore_additions += "&ssl_session_cache_size=#{opts[:ssl_session_cache_size]}" if opts[:ssl_session_cache_size]
+        keystore_additions += "&ssl_session_timeout=#{opts[:ssl_session_timeout]}" if opts[:ssl_session_timeout]
+        keystore_additions += "&direct_io=true" if opts[:direct_io]
+        keystore_additions += "&no_tlsv1_3=true" if opts[:no_tlsv1_3]
+        keystore_additions += "&alpn_protocols=#{Array(opts[:alpn_protocols]).join(',')}" if opts[:alpn_protocols]
         bind "ssl://#{host}:#{port}?cert=#{opts[:cert]}&key=#{opts[:key]}&#{keystore_additions}&verify_mode=#{verify}&no_tlsv1=#{no_tlsv1}&no_tlsv1_1=#{no_tlsv1_1}#{ca_additions}"
       else
         ssl_cipher_filter = "&ssl_cipher_filter=#{opts[:ssl_cipher_filter]}" if opts[:ssl_cipher_filter]
@@ -657,6 +691,106 @@ module Puma
       @options[:queue_requests] = answer
     end
 
+    # How many reactor threads buffer incoming requests, see
+    # +queue_requests+. Each one has its own selector, timeouts and lock,
+    # and new connections are handed to them in turn. More than one only
+    # helps where threads run in parallel, as on JRuby, and a single reactor
+    # can't keep up with reading requests and TLS handshakes.
+    #
+    # The default is 1.
+    #
+    # @example
+    #   reactor_threads 4
+    def reactor_threads(count)
+      count = Integer(count)
+      raise "reactor_threads must be at least 1" if count < 1
+      @options[:reactor_threads] = count
+    end
+
+    # Run requests on Java virtual threads instead of regular threads.
+    # A virtual thread that waits on a socket, say for a database or an
+    # HTTP API, parks without tying up an OS thread, so the maximum of
+    # +threads+ becomes a limit on how many requests run at once rather
+    # than a number of OS threads and can be set much higher.
+    #
+    # Code that blocks inside a +synchronized+ Java block or a native
+    # call still holds on to the carrier thread while it waits.
+    #
+    # The default is false.
+    #
+    # @note JRuby on JDK 21 or later only, regular threads are used otherwise.
+    # @example
+    #   threads 0, 256
+    #   virtual_threads
+    def virtual_threads(answer=true)
+      @options[:virtual_threads] = answer
+    end
+
+    # Let Puma pick the number of threads, between the minimum and maximum
+    # of +threads+, to keep requests from waiting in the queue for a
+    # thread much longer than +target_latency+ seconds.
+    #
+    # It starts out allowing the maximum. Every second it estimates the
+    # queueing delay from the backlog and the rate requests are finished.
+    # It allows more threads while the delay is over the target, and fewer
+    # once it's well under and threads are idle. The current limit and the
+    # measurements behind it are in the stats as +thread_limit+,
+    # +thread_limit_change+, +queue_latency_ms+, +service_time_ms+ and
+    # +throughput+ (requests a second).
+    #
+    # This replaces trimming idle threads every 30 seconds.
+    #
+    # The default is off, threads are added whenever requests are queued.
+    #
+    # @example
+    #   threads 1, 64
+    #   adaptive_threads 0.05
+    def adaptive_threads(target_latency=0.05)
+      target_latency = Float(target_latency)
+      raise "adaptive_threads target_latency must be greater than 0" unless target_latency > 0
+      @options[:adaptive_threads] = target_latency
+    end
+
+    # Hand each request from a keep-alive connection to the thread that
+    # served its previous request, if that thread is free, so its state is
+    # still in that CPU's cache. Otherwise the thread that became free most
+    # recently takes it, and requests no thread is free for go to whichever
+    # thread finishes first.
+    #
+    # Without this, requests are shared out in the order threads become free.
+    # This is mostly useful with several threads on JRuby, where they run in
+    # parallel.
+    #
+    # The default is false.
+    #
+    # @example
+    #   thread_affinity
+    def thread_affinity(answer=true)
+      @options[:thread_affinity] = answer
+    end
+
+    # Dispatch requests as soon as their headers are parsed and give the
+    # application a <tt>rack.input</tt> that reads the body from the socket
+    # as it is consumed, instead of buffering it in memory or a tempfile
+    # first. TCP flow control holds the client back while the application
+    # is busy, and a read waits at most +first_data_timeout+ for more data.
+    #
+    # Pass path prefixes to only stream requests below them.
+    #
+    # A streamed body can only be read once, <tt>rack.input.rewind</tt>
+    # raises after reading has started. Whatever the application leaves
+    # unread means the connection is closed after the response.
+    #
+    # The default is false.
+    #
+    # @example
+    #   stream_request_body
+    # @example
+    #   stream_request_body ['/uploads', '/videos']
+    def stream_request_body(paths=true)
+      @options[:stream_request_body] = paths.is_a?(String) ? [paths] : paths
+    end
+
     # When a shutdown is requested, the backtraces of all the
     # threads will be written to $stdout. This can help figure
     # out why shutdown is hanging.
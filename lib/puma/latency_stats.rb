@@ -0,0 +1,100 @@
+# frozen_string_literal: true
+
+require 'thread'
+
+module Puma
+  # Internal Docs, Not a public interface.
+  #
+  # Histograms of where a `Puma::Server`'s requests spend their time, shown
+  # in the stats as +latency+. Each request is split into:
+  #
+  # * +buffer+, from accepting the connection, or the first bytes of the
+  #   next request on a keep-alive connection, until the request has been
+  #   read, less any time spent waiting for a thread. For a client that is
+  #   slow to send its request this is the time in the reactor.
+  # * +queue+, the time the connection waited in the thread pool's queue,
+  #   either for a thread to read it after accept or to run it once the
+  #   reactor buffered it. This grows when the pool is saturated.
+  # * +service+, the time running the app and writing the response.
+  #
+  # Only requests that got a response from Puma are recorded, not ones that
+  # were hijacked, went async or failed with an error.
+  #
+  # Each histogram has the +count+ of requests, the +sum_ms+ of their times
+  # and +buckets+, the number of requests that took up to each of
+  # +buckets_ms+ milliseconds but more than the one before. The last bucket
+  # counts the requests slower than all of them.
+  #
+  # Recording a request takes one lock and a few comparisons.
+  class LatencyStats
+    BUCKETS_MS = [1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000].freeze
+
+    PHASES = [:buffer, :queue, :service].freeze
+
+    def initialize
+      @mutex = Mutex.new
+      @counts = PHASES.map { Array.new(BUCKETS_MS.size + 1, 0) }
+      @sums = Array.new(PHASES.size, 0.0)
+    end
+
+    # Records the request +client+ has just had served. The server started
+    # on it at +started+ and finished at +finished+, both CLOCK_MONOTONIC
+    # seconds.
+    def record(client, started, finished=Process.clock_gettime(Process::CLOCK_MONOTONIC))
+      queue = client.queue_time
+      buffer = started - (client.started_at || started) - queue
+      buffer = 0.0 if buffer < 0
+      service = finished - started
+
+      @mutex.synchronize do
+        add 0, buffer
+        add 1, queue
+        add 2, service
+      end
+    end
+
+    def stats
+      @mutex.synchronize do
+        stats = { buckets_ms: BUCKETS_MS }
+        PHASES.each_with_index do |phase, i|
+          counts = @counts[i]
+          stats[phase] = {
+            count: counts.inject(0, :+),
+            sum_ms: (@sums[i] * 1000).round(3),
+            buckets: counts.dup
+          }
+        end
+        stats
+      end
+    end
+
+    # Adds up the +latency+ stats of several workers, ignoring +nil+s for
+    # workers that haven't reported yet. Returns +nil+ if there are none.
+    def self.merge(all)
+      all = all.compact
+      return if all.empty?
+
+      merged = { buckets_ms: BUCKETS_MS }
+      PHASES.each do |phase|
+        histograms = all.map { |stats| stats[phase] }
+        merged[phase] = {
+          count: histograms.inject(0) { |sum, h| sum + h[:count] },
+          sum_ms: histograms.inject(0.0) { |sum, h| sum + h[:sum_ms] }.round(3),
+          buckets: histograms.map { |h| h[:buckets] }.transpose.map { |b| b.inject(0, :+) }
+        }
+      end
+      merged
+    end
+
+    private
+
+    # Must be called with @mutex held!
+    #
+    def add(phase, seconds)
+      ms = seconds * 1000
+      bucket = BUCKETS_MS.index { |limit| ms <= limit } || BUCKETS_MS.size
+      @counts[phase][bucket] += 1
+      @sums[phase] += seconds
+    end
+  end
+end
@@ -5,6 +5,8 @@ begin
 rescue LoadError
 end
 
+require 'puma/detect'
+
 module Puma
   module MiniSSL
     class Socket
@@ -12,6 +14,7 @@ module Puma
         @socket = socket
         @engine = engine
         @peercert = nil
+        @direct = false
       end
 
       def to_io
@@ -23,6 +26,14 @@ module Puma
       end
 
       def readpartial(size)
+        if @direct
+          while (output = @engine.read_channel) == :wait_readable
+            @socket.wait_readable
+          end
+          raise EOFError unless output
+          return output
+        end
+
         while true
           output = @engine.read
           return output if output
@@ -50,10 +61,25 @@ module Puma
       def read_nonblock(size, *_)
         # *_ is to deal with keyword args that were added
         # at some point (and being used in the wild)
+        if @direct
+          output = @engine.read_channel
+          raise IO::EAGAINWaitReadable if output == :wait_readable
+          return output
+        end
+
         while true
           output = engine_read_all
           return output if output
 
+          if IS_JRUBY
+            # the handshake can continue after delegated tasks without any new data to read
+            while neg_data = @engine.extract
+              @socket.write neg_data
+            end
+
+            raise IO::EAGAINWaitReadable if @engine.task_pending?
+          end
+
           data = @socket.read_nonblock(size, exception: false)
           if data == :wait_readable || data == :wait_writable
             # It would make more sense to let @socket.read_nonblock raise
@@ -81,8 +107,38 @@ module Puma
         end
       end
 
+      if IS_JRUBY
+        # Runs the engine's delegated handshake tasks on a background executor,
+        # calling the block once they are done. Only for sockets that are read
+        # with read_nonblock, as readpartial would wait for data that never comes.
+        # Without a block the tasks run inline again.
+        def delegate_tasks(&block)
+          @engine.delegate_tasks(&block)
+        end
+
+        # Encrypts all of +parts+ together and writes them with a single
+        # socket write. Returns the number of plaintext bytes written.
+        def write_all(parts)
+          return @engine.write_channel(parts) if @direct
+          @socket.write @engine.write_all(parts)
+          parts.sum(&:bytesize)
+        end
+
+        # The protocol negotiated with ALPN, or nil
+        def alpn_protocol
+          @engine.alpn_protocol
+        end
+
+        # Lets the engine read and write ciphertext straight from the
+        # socket's channel, so only plaintext is copied into Ruby strings.
+        def direct_io!
+          @direct = @engine.attach @socket
+        end
+      end
+
       def write(data)
         return 0 if data.empty?
+        return @engine.write_channel(data) if @direct
 
         need = data.bytesize
 
@@ -186,6 +242,19 @@ module Puma
         attr_reader :keystore
         attr_accessor :keystore_pass
         attr_accessor :ssl_cipher_list
+        # nil leaves the JDK defaults in place
+        attr_accessor :ssl_session_cache_size, :ssl_session_timeout
+        # read and write ciphertext straight from the socket, see Socket#direct_io!
+        attr_accessor :direct_io
+        # protocols offered through ALPN in order of preference, e.g. ['h2', 'http/1.1']
+        attr_accessor :alpn_protocols
+        attr_reader :no_tlsv1_3
+
+        # disables TLSv1.3, which is otherwise enabled when the JDK supports it
+        def no_tlsv1_3=(tlsv1_3)
+          raise ArgumentError, "Invalid value of no_tlsv1_3" unless ['true', 'false', true, false].include?(tlsv1_3)
+          @no_tlsv1_3 = tlsv1_3 == true || tlsv1_3 == 'true'
+        end
 
         def keystore=(keystore)
           raise ArgumentError, "No such keystore file '#{keystore}'" unless File.exist? keystore
@@ -257,7 +326,7 @@ module Puma
         io = @socket.accept
         engine = Engine.server @ctx
 
-        Socket.new io, engine
+        wrap io, engine
       end
 
       def accept_nonblock
@@ -265,8 +334,15 @@ module Puma
         io = @socket.accept_nonblock
         engine = Engine.server @ctx
 
-        Socket.new io, engine
+        wrap io, engine
+      end
+
+      def wrap(io, engine)
+        socket = Socket.new io, engine
+        socket.direct_io! if IS_JRUBY && @ctx.direct_io
+        socket
       end
+      private :wrap
 
       def addr
         @socket.addr
@@ -25,6 +25,11 @@ module Puma
 
           ctx.keystore_pass = params['keystore-pass']
           ctx.ssl_cipher_list = params['ssl_cipher_list'] if params['ssl_cipher_list']
+          ctx.ssl_session_cache_size = Integer(params['ssl_session_cache_size']) if params['ssl_session_cache_size']
+          ctx.ssl_session_timeout = Integer(params['ssl_session_timeout']) if params['ssl_session_timeout']
+          ctx.direct_io = true if params['direct_io'] == 'true'
+          ctx.no_tlsv1_3 = true if params['no_tlsv1_3'] == 'true'
+          ctx.alpn_protocols = params['alpn_protocols'].split(',') if params['alpn_protocols']
         else
           unless params['key']
             events.error "Please specify the SSL key via 'key='"
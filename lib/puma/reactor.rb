@@ -2,6 +2,7 @@
 
 require 'puma/util'
 require 'puma/minissl'
+require 'puma/timer_wheel'
 
 require 'nio'
 
@@ -59,8 +60,9 @@ module Puma
       # Read / Write pipes to wake up internal while loop
       @ready, @trigger = Puma::Util.pipe
       @input = []
+      @resumed = []
       @sleep_for = DefaultSleepFor
-      @timeouts = []
+      @timeouts = TimerWheel.new
 
       mon = @selector.register(@ready, :r)
       mon.value = @ready
@@ -116,13 +118,18 @@ module Puma
     #
     # In addition to being woken via a write to one of the sockets the `NIO::Selector#select` will
     # periodically "time out" of the sleep. One of the functions of this is to check for
-    # any requests that have "timed out". At the end of the loop it's checked to see if
-    # the first element in the `@timeout` array has exceed its allowed time. If so,
-    # the client object is removed from the timeout array, a 408 response is written.
+    # any requests that have "timed out". At the end of the loop the `@timeouts` timer wheel
+    # (see `Puma::TimerWheel`) hands back every client that has exceeded its allowed time.
+    # For each one a 408 response is written if it was still sending its request.
     # Then its connection is closed, and the object is removed from the `sockets` array
     # that watches for new data.
     #
-    # This behavior loops until all the objects that have timed out have been removed.
+    # ## Delegated SSL tasks
+    #
+    # On JRuby the expensive part of an SSL handshake runs as delegated tasks on a background executor, so that
+    # a burst of handshakes doesn't stall every other connection. While they run the client reads nothing new
+    # and the socket won't become readable again, so the executor calls `resume` when they finish.
+    # That writes `"r"` to `@trigger` and the client is checked again just like a readable one.
     #
     # Once all the timeouts have been processed, the next duration of the `NIO::Selector#select` sleep
     # will be set to be equal to the amount of time it will take for the next timeout to occur.
@@ -154,6 +161,8 @@ module Puma
         end
 
         if ready
+          resumed = nil
+
           ready.each do |mon|
             if mon.value == @ready
               @mutex.synchronize do
@@ -176,13 +185,13 @@ module Puma
                       # entirely
                     else
                       mon.value = c
-                      @timeouts << mon if c.timeout_at
+                      delegate_ssl_tasks mon
+                      @timeouts.add(mon, c.timeout_at) if c.timeout_at
                       monitors << mon
                     end
                   end
                   @input.clear
 
-                  @timeouts.sort! { |a,b| a.value.timeout_at <=> b.value.timeout_at }
                   calculate_sleep
                 when "c"
                   monitors.reject! do |submon|
@@ -199,99 +208,124 @@ module Puma
                       true
                     end
                   end
+                when "r"
+                  resumed = @resumed
+                  @resumed = []
                 when "!"
                   return
                 end
               end
             else
+              handle_client mon
+            end
+          end
+
+          resumed.each { |mon| handle_client mon unless mon.closed? } if resumed
+        end
+
+        unless @timeouts.empty?
+          @mutex.synchronize do
+            @timeouts.expire(Time.now) do |mon|
               c = mon.value
+              c.write_error(408) if c.in_data_phase
+              c.close
 
-              # We have to be sure to remove it from the timeout
-              # list or we'll accidentally close the socket when
-              # it's in use!
-              if c.timeout_at
-                @mutex.synchronize do
-                  @timeouts.delete mon
-                end
-              end
+              clear_monitor mon
+            end
 
-              begin
-                if c.try_to_finish
-                  @app_pool << c
-                  clear_monitor mon
-                end
+            calculate_sleep
+          end
+        end
+      end
+    end
 
-              # Don't report these to the lowlevel_error handler, otherwise
-              # will be flooding them with errors when persistent connections
-              # are closed.
-              rescue ConnectionError
-                c.write_error(500)
-                c.close
-
-                clear_monitor mon
-
-              # SSL handshake failure
-              rescue MiniSSL::SSLError => e
-                @server.lowlevel_error(e, c.env)
-
-                ssl_socket = c.io
-                begin
-                  addr = ssl_socket.peeraddr.last
-                # EINVAL can happen when browser closes socket w/security exception
-                rescue IOError, Errno::EINVAL
-                  addr = "<unknown>"
-                end
+    # Checks whether the client watched by +mon+ has sent a complete request,
+    # handing it to the thread pool if it has.
+    def handle_client(mon)
+      c = mon.value
+
+      # We have to be sure to remove it from the timeout
+      # list or we'll accidentally close the socket when
+      # it's in use!
+      if c.timeout_at
+        @mutex.synchronize do
+          @timeouts.delete mon
+        end
+      end
 
-                cert = ssl_socket.peercert
+      begin
+        if c.try_to_finish
+          # the thread pool reads with a blocking readpartial, so tasks run inline again
+          c.io.delegate_tasks if c.io.respond_to? :delegate_tasks
+          c.queued!
+          @app_pool << c
+          clear_monitor mon
+        else
+          # The rest of the request hasn't come yet. Wait up to
+          # first_data_timeout for more, it has to go back in the timeouts
+          # or a client that sends part of a request holds the connection
+          # forever.
+          c.set_timeout @server.first_data_timeout
+          @mutex.synchronize do
+            @timeouts.add(mon, c.timeout_at)
+          end
+        end
 
-                c.close
-                clear_monitor mon
+      # Don't report these to the lowlevel_error handler, otherwise
+      # will be flooding them with errors when persistent connections
+      # are closed.
+      rescue ConnectionError
+        c.write_error(500)
+        c.close
 
-                @events.ssl_error @server, addr, cert, e
+        clear_monitor mon
 
-              # The client doesn't know HTTP well
-              rescue HttpParserError => e
-                @server.lowlevel_error(e, c.env)
+      # SSL handshake failure
+      rescue MiniSSL::SSLError => e
+        @server.lowlevel_error(e, c.env)
 
-                c.write_error(400)
-                c.close
+        ssl_socket = c.io
+        begin
+          addr = ssl_socket.peeraddr.last
+        # EINVAL can happen when browser closes socket w/security exception
+        rescue IOError, Errno::EINVAL
+          addr = "<unknown>"
+        end
 
-                clear_monitor mon
+        cert = ssl_socket.peercert
 
-                @events.parse_error @server, c.env, e
-              rescue StandardError => e
-                @server.lowlevel_error(e, c.env)
+        c.close
+        clear_monitor mon
 
-                c.write_error(500)
-                c.close
+        @events.ssl_error @server, addr, cert, e
 
-                clear_monitor mon
-              end
-            end
-          end
-        end
+      # The client doesn't know HTTP well
+      rescue HttpParserError => e
+        @server.lowlevel_error(e, c.env)
 
-        unless @timeouts.empty?
-          @mutex.synchronize do
-            now = Time.now
+        c.write_error(400)
+        c.close
 
-            while @timeouts.first.value.timeout_at < now
-              mon = @timeouts.shift
-              c = mon.value
-              c.write_error(408) if c.in_data_phase
-              c.close
+        clear_monitor mon
 
-              clear_monitor mon
+        @events.parse_error @server, c.env, e
+      rescue StandardError => e
+        @server.lowlevel_error(e, c.env)
 
-              break if @timeouts.empty?
-            end
+        c.write_error(500)
+        c.close
 
-            calculate_sleep
-          end
-        end
+        clear_monitor mon
       end
     end
 
+    # Has the JRuby SSL engine hand its delegated tasks to a background
+    # executor, calling `resume` for +mon+ once they are done.
+    def delegate_ssl_tasks(mon)
+      io = mon.value.io
+      io.delegate_tasks { resume mon } if io.respond_to? :delegate_tasks
+    end
+
     def clear_monitor(mon)
       @selector.deregister mon.value
       @monitors.delete mon
@@ -306,9 +340,9 @@ module Puma
       @ready.close
     end
 
-    def run_in_thread
+    def run_in_thread(name="reactor")
       @thread = Thread.new do
-        Puma.set_thread_name "reactor"
+        Puma.set_thread_name name
         begin
           run_internal
         rescue StandardError => e
@@ -325,18 +359,17 @@ module Puma
     # The `calculate_sleep` sets the value that the `NIO::Selector#select` will
     # sleep for in the main reactor loop when no sockets are being written to.
     #
-    # The values kept in `@timeouts` are sorted so that the first timeout
-    # comes first in the array. When there are no timeouts the default timeout is used.
+    # When there are no timeouts the default timeout is used.
     #
-    # Otherwise a sleep value is set that is the same as the amount of time it
-    # would take for the first element to time out.
+    # Otherwise a sleep value is set that is the same as the amount of time
+    # until the next tick of `@timeouts` that has a client in it.
     #
     # If that value is in the past, then a sleep value of zero is used.
     def calculate_sleep
       if @timeouts.empty?
         @sleep_for = DefaultSleepFor
       else
-        diff = @timeouts.first.value.timeout_at.to_f - Time.now.to_f
+        diff = @timeouts.next_expiry - Time.now.to_f
 
         if diff < 0.0
           @sleep_for = 0
@@ -368,9 +401,8 @@ module Puma
     # pull the contents from `@input` and add them to the sockets array.
     #
     # If the object passed in has a timeout value in `timeout_at` then
-    # it is added to a `@timeouts` array. This array is then re-arranged
-    # so that the first element to timeout will be at the front of the
-    # array. Then a value to sleep for is derived in the call to `calculate_sleep`
+    # it is added to the `@timeouts` timer wheel. Then a value to sleep for
+    # is derived in the call to `calculate_sleep`
     def add(c)
       @mutex.synchronize do
         @input << c
@@ -378,6 +410,18 @@ module Puma
       end
     end
 
+    # Wakes up the reactor to check the client watched by +mon+ again, even
+    # though its socket hasn't become readable. Called from the executor that
+    # ran its delegated SSL tasks.
+    def resume(mon)
+      @mutex.synchronize do
+        @resumed << mon
+        @trigger << "r"
+      end
+    rescue IOError
+      # the reactor has shut down
+    end
+
     # Close all watched sockets and clear them from being watched
     def clear!
       begin
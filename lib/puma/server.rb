@@ -12,6 +12,7 @@ require 'puma/binder'
 require 'puma/accept_nonblock'
 require 'puma/util'
 require 'puma/io_buffer'
+require 'puma/latency_stats'
 
 require 'puma/puma_http11'
 
@@ -29,7 +30,8 @@ module Puma
   # The `Puma::Server` instance pulls requests from the socket, adds them to a
   # `Puma::Reactor` where they get eventually passed to a `Puma::ThreadPool`.
   #
-  # Each `Puma::Server` will have one reactor and one thread pool.
+  # Each `Puma::Server` will have one thread pool and one reactor, or as many
+  # as `reactor_threads` asks for.
   class Server
 
     include Puma::Const
@@ -81,6 +83,7 @@ module Puma
 
       @options = options
       @queue_requests = options[:queue_requests].nil? ? true : options[:queue_requests]
+      @reactor_threads = options.fetch(:reactor_threads, 1)
 
       ENV['RACK_ENV'] ||= "development"
 
@@ -89,6 +92,7 @@ module Puma
       @precheck_closing = true
 
       @requests_count = 0
+      @latency = LatencyStats.new
     end
 
     attr_accessor :binder, :leak_stack_on_error, :early_hints
@@ -160,6 +164,28 @@ module Puma
       @thread_pool and @thread_pool.spawned
     end
 
+    # The latest decision of the adaptive thread pool, see
+    # Puma::DSL#adaptive_threads.
+    def thread_pool_sizing
+      @thread_pool and @thread_pool.sizing
+    end
+
+    # The counters shown in the stats for a single mode server, and
+    # reported by each worker of a cluster.
+    def stats
+      stats = {
+        backlog: backlog || 0,
+        running: running || 0,
+        pool_capacity: pool_capacity || 0,
+        max_threads: max_threads || 0,
+        requests_count: requests_count || 0,
+      }
+      if sizing = thread_pool_sizing
+        stats.merge! sizing
+      end
+      stats[:latency] = @latency.stats
+      stats
+    end
 
     # This number represents the number of requests that
     # the server is capable of taking right now.
@@ -187,13 +213,23 @@ module Puma
 
       queue_requests = @queue_requests
 
+      virtual_threads = @options[:virtual_threads]
+      if virtual_threads && !(defined?(VirtualThreads) && VirtualThreads.supported?)
+        @events.log "! virtual_threads needs JRuby on JDK 21 or later, using regular threads"
+        virtual_threads = false
+      end
+
       @thread_pool = ThreadPool.new(@min_threads,
                                     @max_threads,
-                                    ::Puma::IOBuffer) do |client, buffer|
+                                    ::Puma::IOBuffer,
+                                    virtual_threads: virtual_threads,
+                                    affinity: @options[:thread_affinity]) do |client, buffer|
 
         # Advertise this server into the thread
         Thread.current[ThreadLocalKey] = self
 
+        client.dequeued!
+
         process_now = false
 
         begin
@@ -223,7 +259,7 @@ module Puma
             process_client client, buffer
           else
             client.set_timeout @first_data_timeout
-            @reactor.add client
+            add_to_reactor client
           end
         end
       end
@@ -231,15 +267,21 @@ module Puma
       @thread_pool.clean_thread_locals = @options[:clean_thread_locals]
 
       if queue_requests
-        @reactor = Reactor.new self, @thread_pool
-        @reactor.run_in_thread
+        @next_reactor = 0
+        @next_reactor_mutex = Mutex.new
+        @reactors = Array.new(@reactor_threads) { Reactor.new self, @thread_pool }
+        @reactors.each_with_index do |reactor, i|
+          reactor.run_in_thread(i == 0 ? "reactor" : "reactor #{i}")
+        end
       end
 
       if @reaping_time
         @thread_pool.auto_reap!(@reaping_time)
       end
 
-      if @auto_trim_time
+      if @options[:adaptive_threads]
+        @thread_pool.auto_size!(@options[:adaptive_threads])
+      elsif @auto_trim_time
         @thread_pool.auto_trim!(@auto_trim_time)
       end
 
@@ -263,16 +305,6 @@ module Puma
         pool = @thread_pool
         queue_requests = @queue_requests
 
-        remote_addr_value = nil
-        remote_addr_header = nil
-
-        case @options[:remote_address]
-        when :value
-          remote_addr_value = @options[:remote_address_value]
-        when :header
-          remote_addr_header = @options[:remote_address_header]
-        end
-
         while @status == :run
           begin
             ios = IO.select sockets
@@ -282,12 +314,7 @@ module Puma
               else
                 begin
                   if io = sock.accept_nonblock
-                    client = Client.new io, @binder.env(sock)
-                    if remote_addr_value
-                      client.peerip = remote_addr_value
-                    elsif remote_addr_header
-                      client.remote_addr_header = remote_addr_header
-                    end
+                    client = new_client io, sock
 
                     pool << client
                     busy_threads = pool.wait_until_not_full
@@ -316,8 +343,8 @@ module Puma
 
         graceful_shutdown if @status == :stop || @status == :restart
         if queue_requests
-          @reactor.clear!
-          @reactor.shutdown
+          @reactors.each(&:clear!)
+          @reactors.each(&:shutdown)
         end
       rescue Exception => e
         STDERR.puts "Exception handling servers: #{e.message} (#{e.class})"
@@ -380,18 +407,19 @@ module Puma
 
             check_for_more_data = @status == :run
 
-            if requests >= MAX_FAST_INLINE
+            if requests >= MAX_FAST_INLINE && @thread_pool.backlog > 0
               # This will mean that reset will only try to use the data it already
-              # has buffered and won't try to read more data. What this means is that
-              # every client, independent of their request speed, gets treated like a slow
-              # one once every MAX_FAST_INLINE requests.
+              # has buffered and won't try to read more data. Once other clients are
+              # waiting for a thread, a client that keeps sending requests gets
+              # treated like a slow one every MAX_FAST_INLINE requests, so it
+              # can't add to their latency for long.
               check_for_more_data = false
             end
 
             unless client.reset(check_for_more_data)
               close_socket = false
               client.set_timeout @persistent_timeout
-              @reactor.add client
+              add_to_reactor client
               return
             end
           end
@@ -443,6 +471,48 @@ module Puma
       end
     end
 
+    # Wraps +io+, just accepted from +sock+, in a Client set up for the
+    # options of this server.
+    #
+    def new_client(io, sock)
+      client = Client.new io, @binder.env(sock)
+
+      case @options[:remote_address]
+      when :value
+        client.peerip = @options[:remote_address_value]
+      when :header
+        client.remote_addr_header = @options[:remote_address_header]
+      end
+
+      if stream_paths = @options[:stream_request_body]
+        client.set_stream_body stream_paths, @first_data_timeout
+      end
+
+      max_body = @options[:max_body_in_memory]
+      tempfile_dir = @options[:body_tempfile_dir]
+      client.set_body_buffering max_body, tempfile_dir if max_body || tempfile_dir
+
+      client
+    end
+
+    private :new_client
+
+    # Hands +client+ to the reactors in turn, so each one buffers an even
+    # share of the connections. Called from the accept loop and from every
+    # worker thread, hence the mutex around the turn.
+    #
+    def add_to_reactor(client)
+      reactors = @reactors
+      reactor = @next_reactor_mutex.synchronize do
+        i = @next_reactor
+        @next_reactor = (i + 1) % reactors.size
+        reactors[i]
+      end
+      reactor.add client
+    end
+
+    private :add_to_reactor
+
     # Given a Hash +env+ for the request read from +client+, add
     # and fixup keys to comply with Rack's env guidelines.
     #
@@ -521,6 +591,7 @@ module Puma
     #
     # Finally, it'll return +true+ on keep-alive connections.
     def handle_request(req, lines)
+      started = Process.clock_gettime(Process::CLOCK_MONOTONIC)
       @requests_count +=1
 
       env = req.env
@@ -651,6 +722,9 @@ module Puma
           false
         end
 
+        # What the app didn't read of a streamed body is still on the socket
+        keep_alive = false if req.streaming?
+
         response_hijack = nil
 
         headers.each do |k, vs|
@@ -703,6 +777,23 @@ module Puma
 
         lines << line_ending
 
+        # JRuby SSL sockets encrypt a whole array body along with the headers in one go
+        if !response_hijack && res_body.kind_of?(Array) && client.respond_to?(:write_all)
+          parts = [lines.to_s]
+          res_body.each do |part|
+            next if part.bytesize.zero?
+            if chunked
+              parts << part.bytesize.to_s(16) << line_ending << part << line_ending
+            else
+              parts << part
+            end
+          end
+          parts << CLOSE_CHUNKED if chunked
+
+          fast_write_all client, parts
+          return keep_alive
+        end
+
         fast_write client, lines.to_s
 
         if response_hijack
@@ -714,10 +805,7 @@ module Puma
           res_body.each do |part|
             next if part.bytesize.zero?
             if chunked
-              fast_write client, part.bytesize.to_s(16)
-              fast_write client, line_ending
-              fast_write client, part
-              fast_write client, line_ending
+              fast_write_all client, [part.bytesize.to_s(16), line_ending, part, line_ending]
             else
               fast_write client, part
             end
@@ -743,6 +831,10 @@ module Puma
         after_reply.each { |o| o.call }
       end
 
+      # only responses that were written, a hijacked or async request
+      # returns before it's done and an error means there's no response
+      @latency.record req, started
+
       return keep_alive
     end
 
@@ -755,8 +847,9 @@ module Puma
     # plus a potential Content-Length value +cl+, finish reading
     # the body and return it.
     #
-    # If the body is larger than MAX_BODY, a Tempfile object is used
-    # for the body, otherwise a StringIO is used.
+    # If the body is larger than the max_body_in_memory option (MAX_BODY
+    # by default), a Tempfile object is used for the body, otherwise a
+    # StringIO is used.
     #
     def read_body(env, client, body, cl)
       content_length = cl.to_i
@@ -766,8 +859,8 @@ module Puma
       return StringIO.new(body) if remain <= 0
 
       # Use a Tempfile if there is a lot of data left
-      if remain > MAX_BODY
-        stream = Tempfile.new(Const::PUMA_TMP_BASE)
+      if remain > (@options[:max_body_in_memory] || MAX_BODY)
+        stream = Tempfile.new(Const::PUMA_TMP_BASE, @options[:body_tempfile_dir] || Dir.tmpdir)
         stream.binmode
       else
         # The body[0,0] trick is to get an empty string in the same
@@ -852,7 +945,7 @@ module Puma
             begin
               if io = sock.accept_nonblock
                 count += 1
-                client = Client.new io, @binder.env(sock)
+                client = new_client io, sock
                 @thread_pool << client
               end
             rescue SystemCallError
@@ -931,6 +1024,21 @@ module Puma
     end
     private :fast_write
 
+    # Writes +parts+ in order. Sockets that can encrypt several strings at
+    # once (JRuby SSL) get them in a single call, others one at a time.
+    def fast_write_all(io, parts)
+      if io.respond_to? :write_all
+        begin
+          io.write_all parts
+        rescue SystemCallError, IOError
+          raise ConnectionError, "Socket timeout writing data"
+        end
+      else
+        parts.each { |part| fast_write io, part }
+      end
+    end
+    private :fast_write_all
+
     ThreadLocalKey = :puma_server
 
     def self.current
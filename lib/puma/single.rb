@@ -14,14 +14,14 @@ module Puma
   # that this inherits from.
   class Single < Runner
     def stats
-      {
-        started_at: @started_at.utc.iso8601,
-        backlog: @server.backlog || 0,
-        running: @server.running || 0,
-        pool_capacity: @server.pool_capacity || 0,
-        max_threads: @server.max_threads || 0,
-        requests_count: @server.requests_count || 0,
-      }
+      stats = { started_at: @started_at.utc.iso8601 }.merge! @server.stats
+      # parser and TLS counters are only tracked by the JRuby extension
+      if Puma.jruby?
+        jruby = HttpParser.stats
+        jruby.merge! MiniSSL::Engine.stats if @launcher.binder.ssl?
+        stats[:jruby] = jruby
+      end
+      stats
     end
 
     def restart
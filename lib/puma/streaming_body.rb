@@ -0,0 +1,91 @@
+# frozen_string_literal: true
+
+module Puma
+  # The rack.input of a request whose body is streamed, see
+  # Puma::DSL#stream_request_body. The body is read from the client
+  # socket as the application asks for it instead of being buffered
+  # before the request is dispatched.
+  #
+  # It can only be read once, so #rewind raises once reading has started.
+  #
+  class StreamingBody
+    def initialize(client)
+      @client = client
+      @buffer = String.new
+      @started = false
+    end
+
+    # Called by the client with each part of the body it reads.
+    #
+    def write(data)
+      @buffer << data
+      data.bytesize
+    end
+
+    # Mimics IO#read, waiting for the body to arrive when needed.
+    #
+    def read(count = nil, buffer = nil)
+      @started = true
+
+      if count.nil?
+        nil while @client.read_streamed_body
+        data = take @buffer.bytesize
+        return buffer ? buffer.replace(data) : data
+      end
+
+      raise ArgumentError, "negative length #{count} given" if count < 0
+
+      if count > 0
+        nil while @buffer.bytesize < count && @client.read_streamed_body
+        if @buffer.empty?
+          # like IO#read, the outbuf is emptied at EOF
+          buffer.clear if buffer
+          return nil
+        end
+      end
+
+      data = take count
+      buffer ? buffer.replace(data) : data
+    end
+
+    def gets
+      @started = true
+
+      nil until (eol = @buffer.index("\n")) || !@client.read_streamed_body
+      return nil if @buffer.empty?
+
+      take(eol ? eol + 1 : @buffer.bytesize)
+    end
+
+    def each
+      return to_enum(:each) unless block_given?
+
+      while line = gets
+        yield line
+      end
+    end
+
+    def rewind
+      raise Errno::ESPIPE, "A streamed request body can't be rewound" if @started
+      0
+    end
+
+    def eof?
+      nil while @buffer.empty? && @client.read_streamed_body
+      @buffer.empty?
+    end
+
+    def close
+    end
+
+    private
+
+    def take(count)
+      # at the end of the body there can be less than asked for
+      count = @buffer.bytesize if count > @buffer.bytesize
+      data = @buffer.byteslice(0, count)
+      @buffer = @buffer.byteslice(count, @buffer.bytesize - count)
+      data
+    end
+  end
+end
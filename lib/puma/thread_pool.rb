@@ -2,6 +2,8 @@
 
 require 'thread'
 
+require 'puma/affinity_queue'
+
 module Puma
   # Internal Docs for A simple thread pool management object.
   #
@@ -10,39 +12,66 @@ module Puma
   # First a connection to a client is made in `Puma::Server`. It is wrapped in a
   # `Puma::Client` instance and then passed to the `Puma::Reactor` to ensure
   # the whole request is buffered into memory. Once the request is ready, it is passed into
-  # a thread pool via the `Puma::ThreadPool#<<` operator where it is stored in a `@todo` array.
+  # a thread pool via the `Puma::ThreadPool#<<` operator where it is stored in the `@todo` queue.
   #
-  # Each thread in the pool has an internal loop where it pulls a request from the `@todo` array
+  # Each thread in the pool has an internal loop where it pulls a request from the `@todo` queue
   # and proceses it.
+  #
+  # `@todo` is a `Thread::Queue`, so handing work to the pool and taking it off again doesn't go
+  # through `@mutex`. On JRuby it is a two lock linked queue with an atomic count, adding and
+  # taking work don't block each other and idle threads are parked until work arrives. `@mutex`
+  # only guards spawning, trimming and reaping threads.
   class ThreadPool
     class ForceShutdown < RuntimeError
     end
 
+    # Pushed onto the queue to have one thread exit, see #trim and #shutdown.
+    TRIM = Object.new.freeze
+    SHUTDOWN = Object.new.freeze
+    private_constant :TRIM, :SHUTDOWN
+
     # How long, after raising the ForceShutdown of a thread during
     # forced shutdown mode, to wait for the thread to try and finish
     # up its work before leaving the thread to die on the vine.
     SHUTDOWN_GRACE_TIME = 5 # seconds
 
+    # How long wait_until_not_full waits for a signal before checking
+    # again whether a thread has become free. A signal is only missed by a
+    # thread that read the flag just before it was set and hadn't reached
+    # @todo.pop yet when it was checked again.
+    NOT_FULL_RECHECK = 0.1 # seconds
+
+    # How often auto_size! adjusts the number of threads by default.
+    AUTO_SIZE_INTERVAL = 1 # seconds
+
     # Maintain a minimum of +min+ and maximum of +max+ threads
     # in the pool.
     #
     # The block passed is the work that will be performed in each
     # thread.
     #
-    def initialize(min, max, *extra, &block)
-      @not_empty = ConditionVariable.new
+    # With +virtual_threads+ the threads are Java virtual threads, see
+    # Puma::DSL#virtual_threads. JRuby on JDK 21 or later only.
+    #
+    # With +affinity+ work is queued in a Puma::AffinityQueue, which gives
+    # it to the thread that last handled the same object when it can.
+    #
+    def initialize(min, max, *extra, virtual_threads: false, affinity: false, &block)
       @not_full = ConditionVariable.new
       @mutex = Mutex.new
 
-      @todo = []
+      @todo = affinity ? AffinityQueue.new : Queue.new
 
       @spawned = 0
-      @waiting = 0
+      @not_full_waiting = false
 
       @min = Integer(min)
       @max = Integer(max)
+      # how many threads << spawns up to, auto_size! moves it between min and max
+      @limit = @max
       @block = block
       @extra = extra
+      @thread_class = virtual_threads ? VirtualThreads : Thread
 
       @shutdown = false
 
@@ -50,8 +79,15 @@ module Puma
 
       @workers = []
 
+      # requests handled and seconds spent on them, per thread and by
+      # threads that have gone
+      @served = {}
+      @served_retired = [0, 0.0]
+
       @auto_trim = nil
       @reaper = nil
+      @auto_size = nil
+      @sizing = nil
 
       @mutex.synchronize do
         @min.times { spawn_thread }
@@ -60,7 +96,7 @@ module Puma
       @clean_thread_locals = false
     end
 
-    attr_reader :spawned, :trim_requested, :waiting
+    attr_reader :spawned, :trim_requested, :limit, :sizing
     attr_accessor :clean_thread_locals
 
     def self.clean_thread_locals
@@ -72,98 +108,129 @@ module Puma
     # How many objects have yet to be processed by the pool?
     #
     def backlog
-      @mutex.synchronize { @todo.size }
+      backlog = @todo.size - @trim_requested
+      backlog < 0 ? 0 : backlog
+    end
+
+    # How many threads are idle, waiting for work?
+    #
+    def waiting
+      @todo.num_waiting
     end
 
     def pool_capacity
       waiting + (@max - spawned)
     end
 
+    # How many requests the pool has handled, and how many seconds its
+    # threads spent handling them.
+    #
+    def served
+      @mutex.synchronize do
+        count, seconds = @served_retired
+        @served.each_value do |c, s|
+          count += c
+          seconds += s
+        end
+        [count, seconds]
+      end
+    end
+
     # :nodoc:
     #
     # Must be called with @mutex held!
     #
     def spawn_thread
       @spawned += 1
+      served = [0, 0.0]
 
-      th = Thread.new(@spawned) do |spawned|
+      th = @thread_class.start(@spawned) do |spawned|
         Puma.set_thread_name 'threadpool %03i' % spawned
         todo  = @todo
         block = @block
         mutex = @mutex
-        not_empty = @not_empty
         not_full = @not_full
 
         extra = @extra.map { |i| i.new }
 
         while true
-          work = nil
-
-          continue = true
-
-          mutex.synchronize do
-            while todo.empty?
-              if @trim_requested > 0
-                @trim_requested -= 1
-                continue = false
-                not_full.signal
-                break
-              end
-
-              if @shutdown
-                continue = false
-                break
-              end
-
-              @waiting += 1
-              not_full.signal
-              not_empty.wait mutex
-              @waiting -= 1
-            end
+          # This thread is about to be free, only take the lock if
+          # wait_until_not_full is waiting for that.
+          mutex.synchronize { not_full.signal } if @not_full_waiting
 
-            work = todo.shift if continue
+          work = todo.pop
+
+          if TRIM.equal?(work)
+            mutex.synchronize { @trim_requested -= 1 }
+            break
           end
 
-          break unless continue
+          break if SHUTDOWN.equal?(work)
 
           if @clean_thread_locals
             ThreadPool.clean_thread_locals
           end
 
+          started = Process.clock_gettime(Process::CLOCK_MONOTONIC)
+
           begin
             block.call(work, *extra)
           rescue Exception => e
             STDERR.puts "Error reached top of thread-pool: #{e.message} (#{e.class})"
           end
+
+          # only this thread writes to served, so it needs no lock
+          served[1] += Process.clock_gettime(Process::CLOCK_MONOTONIC) - started
+          served[0] += 1
         end
 
         mutex.synchronize do
           @spawned -= 1
           @workers.delete th
+          retire_served th
+          not_full.signal
         end
       end
 
       @workers << th
+      @served[th] = served
 
       th
     end
 
     private :spawn_thread
 
+    # :nodoc:
+    #
+    # Must be called with @mutex held!
+    #
+    def retire_served(thread)
+      count, seconds = @served.delete(thread)
+      return unless count
+
+      @served_retired[0] += count
+      @served_retired[1] += seconds
+    end
+
+    private :retire_served
+
     # Add +work+ to the todo list for a Thread to pickup and process.
     def <<(work)
-      @mutex.synchronize do
-        if @shutdown
-          raise "Unable to add work while shutting down"
-        end
+      if @shutdown
+        raise "Unable to add work while shutting down"
+      end
 
-        @todo << work
+      # Idle threads are counted before the push, a thread it wakes up stops
+      # counting as waiting before it has taken the work. Once all the
+      # threads are spawned this is skipped and the lock is never taken.
+      spawn = @spawned < @limit && waiting <= backlog
 
-        if @waiting < @todo.size and @spawned < @max
-          spawn_thread
-        end
+      @todo << work
 
-        @not_empty.signal
+      if spawn
+        @mutex.synchronize do
+          spawn_thread if !@shutdown and @spawned < @limit
+        end
       end
     end
 
@@ -186,9 +253,9 @@ module Puma
     # signaled, usually this indicates that a request has been processed.
     #
     # It's important to note that even though the server might accept another
-    # request, it might not be added to the `@todo` array right away.
+    # request, it might not be added to the `@todo` queue right away.
     # For example if a slow client has only sent a header, but not a body
-    # then the `@todo` array would stay the same size as the reactor works
+    # then the `@todo` queue would stay the same size as the reactor works
     # to try to buffer the request. In that scenario the next call to this
     # method would not block and another request would be added into the reactor
     # by the server. This would continue until a fully bufferend request
@@ -197,18 +264,29 @@ module Puma
     # Returns the current number of busy threads, or +nil+ if shutting down.
     #
     def wait_until_not_full
-      @mutex.synchronize do
-        while true
-          return if @shutdown
-
-          # If we can still spin up new threads and there
-          # is work queued that cannot be handled by waiting
-          # threads, then accept more work until we would
-          # spin up the max number of threads.
-          busy_threads = @spawned - @waiting + @todo.size
-          return busy_threads if @max > busy_threads
+      while true
+        return if @shutdown
+
+        # If we can still spin up new threads and there
+        # is work queued that cannot be handled by waiting
+        # threads, then accept more work until we would
+        # spin up the max number of threads.
+        busy_threads = @spawned - waiting + backlog
+        return busy_threads if @max > busy_threads
+
+        @mutex.synchronize do
+          @not_full_waiting = true
+
+          # A thread that went idle since the check above didn't see the
+          # flag and won't signal, so check again now that it's set.
+          busy_threads = @spawned - waiting + backlog
+          if @max > busy_threads
+            @not_full_waiting = false
+            return busy_threads
+          end
 
-          @not_full.wait @mutex
+          @not_full.wait @mutex, NOT_FULL_RECHECK
+          @not_full_waiting = false
         end
       end
     end
@@ -219,9 +297,9 @@ module Puma
     #
     def trim(force=false)
       @mutex.synchronize do
-        if (force or @waiting > 0) and @spawned - @trim_requested > @min
+        if (force or waiting > 0) and @spawned - @trim_requested > @min
           @trim_requested += 1
-          @not_empty.signal
+          @todo << TRIM
         end
       end
     end
@@ -235,6 +313,7 @@ module Puma
         dead_workers.each do |worker|
           worker.kill
           @spawned -= 1
+          retire_served worker
         end
 
         @workers.delete_if do |w|
@@ -280,16 +359,112 @@ module Puma
       @reaper.start!
     end
 
+    # Grow and shrink the pool between min and max to keep requests from
+    # waiting in the queue for much longer than +target_latency+ seconds.
+    # This does the trimming too, so it replaces auto_trim!.
+    #
+    # The pool starts out allowed up to max threads, like a pool that isn't
+    # sized, and only shrinks once it's seen it has more than it needs.
+    #
+    # Every +interval+ seconds adjust_size estimates how long requests are
+    # queued with Little's law: the backlog over the rate requests are
+    # finished. If that's over the target, the limit on threads goes up
+    # by enough threads to work the backlog off within the target, or by
+    # one per queued request until a request has finished and the service
+    # time is known. If it's under half the target and threads are idle,
+    # the limit goes down by one, as long as that leaves more threads than
+    # the requests in progress need on average (throughput times service
+    # time). Threads over the limit exit once they're idle. Its latest
+    # decision is in #sizing.
+    #
+    def auto_size!(target_latency, interval=AUTO_SIZE_INTERVAL)
+      @mutex.synchronize do
+        @target_latency = target_latency
+        @sized_at = Process.clock_gettime(Process::CLOCK_MONOTONIC)
+        @sized_count, @sized_seconds = 0, 0.0
+        @service_time = 0.0
+      end
+
+      @auto_size = Automaton.new(self, interval, "threadpool sizer", :adjust_size)
+      @auto_size.start!
+    end
+
+    def adjust_size
+      now = Process.clock_gettime(Process::CLOCK_MONOTONIC)
+      count, seconds = served
+      backlog = self.backlog
+
+      done = count - @sized_count
+      elapsed = now - @sized_at
+      throughput = done / elapsed
+      service_time = done > 0 ? (seconds - @sized_seconds) / done : @service_time
+
+      queue_latency =
+        if backlog == 0
+          0.0
+        elsif done > 0
+          backlog / throughput
+        else
+          # nothing finished, the backlog has waited at least this long
+          elapsed
+        end
+
+      @mutex.synchronize do
+        limit = @limit
+
+        if queue_latency > @target_latency
+          limit +=
+            if service_time > 0
+              [(backlog * service_time / @target_latency).ceil, 1].max
+            else
+              backlog
+            end
+        elsif queue_latency < @target_latency / 2 && waiting > 0
+          limit -= 1 if (throughput * service_time).ceil < limit - 1
+        end
+
+        limit = [[limit, @min, 1].max, @max].min
+        resized = limit - @limit
+        @limit = limit
+
+        # new threads aren't waiting until they reach @todo.pop, which needs
+        # the lock we hold, so work out how many are needed up front
+        unless @shutdown
+          [self.backlog - waiting, @limit - @spawned].min.times { spawn_thread }
+        end
+
+        if @spawned - @trim_requested > [@limit, @min].max && waiting > 0
+          @trim_requested += 1
+          @todo << TRIM
+        end
+
+        @sizing = {
+          thread_limit: @limit,
+          thread_limit_change: resized,
+          queue_latency_ms: (queue_latency * 1000).round(2),
+          service_time_ms: (service_time * 1000).round(2),
+          throughput: throughput.round(2),
+        }
+      end
+
+      @sized_at = now
+      @sized_count = count
+      @sized_seconds = seconds
+      @service_time = service_time
+    end
+
     # Tell all threads in the pool to exit and wait for them to finish.
     #
     def shutdown(timeout=-1)
       threads = @mutex.synchronize do
         @shutdown = true
-        @not_empty.broadcast
+        # queued work is still done, each thread exits once it reaches one of these
+        @workers.size.times { @todo << SHUTDOWN }
         @not_full.broadcast
 
         @auto_trim.stop if @auto_trim
         @reaper.stop if @reaper
+        @auto_size.stop if @auto_size
         # dup workers so that we join them all safely
         @workers.dup
       end
@@ -0,0 +1,90 @@
+# frozen_string_literal: true
+
+module Puma
+  # Internal Docs, Not a public interface.
+  #
+  # A hashed timing wheel that holds the reactor's timeouts. Each deadline is
+  # rounded up to a tick of `resolution` seconds and kept in slot
+  # `tick % slots`, so adding or removing a timeout is O(1) no matter how many
+  # connections are waiting, and expiring them only looks at the slots for the
+  # ticks that have gone by. Deadlines more than one turn of the wheel away
+  # share a slot with nearer ones and are passed over until their tick comes.
+  #
+  # A value expires up to `resolution` seconds after its deadline, never before.
+  class TimerWheel
+    RESOLUTION = 0.1
+    SLOTS = 1024
+
+    def initialize(resolution=RESOLUTION, slots=SLOTS, now=Time.now)
+      @resolution = resolution
+      @slots = Array.new(slots) { {} }
+      @ticks = {}
+      @current = (now.to_f / resolution).floor
+    end
+
+    def size
+      @ticks.size
+    end
+
+    def empty?
+      @ticks.empty?
+    end
+
+    # Adds +value+ to expire at the Time +at+. Adding a value that is
+    # already in the wheel moves it.
+    def add(value, at)
+      delete value
+
+      tick = (at.to_f / @resolution).ceil
+      tick = @current + 1 if tick <= @current
+
+      @ticks[value] = tick
+      @slots[tick % @slots.size][value] = tick
+      value
+    end
+
+    def delete(value)
+      tick = @ticks.delete(value)
+      return unless tick
+
+      @slots[tick % @slots.size].delete value
+      value
+    end
+
+    # Removes every value whose deadline has passed by +now+ and yields it.
+    def expire(now=Time.now)
+      now_tick = (now.to_f / @resolution).floor
+      return if now_tick <= @current
+
+      size = @slots.size
+      expired = []
+
+      [now_tick - @current, size].min.times do |i|
+        slot = @slots[(@current + 1 + i) % size]
+        next if slot.empty?
+        slot.each { |value, tick| expired << value if tick <= now_tick }
+      end
+
+      @current = now_tick
+
+      expired.each do |value|
+        delete value
+        yield value
+      end
+    end
+
+    # The time, as a Float, when the next value may expire, or +nil+ if the
+    # wheel is empty. This is when the reactor should wake up. For a value
+    # more than a turn of the wheel away it's early, nothing expires then and
+    # the reactor just goes back to sleep.
+    def next_expiry
+      return if @ticks.empty?
+
+      size = @slots.size
+      1.upto(size) do |i|
+        tick = @current + i
+        return tick * @resolution unless @slots[tick % size].empty?
+      end
+    end
+  end
+end
@@ -0,0 +1,99 @@
+require_relative "helper"
+
+require "puma/affinity_queue"
+
+class TestAffinityQueue < Minitest::Test
+  parallelize_me!
+
+  def setup
+    @queue = Puma::AffinityQueue.new
+  end
+
+  # Starts a thread that pops from the queue until it gets :done, recording
+  # what it got, and waits until it is idle.
+  def consumer(name, seen)
+    idle = @queue.num_waiting
+    thread = Thread.new do
+      while (work = @queue.pop) != :done
+        seen << [name, work]
+      end
+    end
+    Thread.pass until @queue.num_waiting > idle
+    thread
+  end
+
+  def wait_idle(count)
+    Thread.pass until @queue.num_waiting == count
+  end
+
+  def test_queues_work_when_no_thread_is_idle
+    @queue << 1
+    @queue << 2
+
+    assert_equal 2, @queue.size
+    assert_equal 1, @queue.pop
+    assert_equal 2, @queue.pop
+    assert_equal 0, @queue.size
+  end
+
+  def test_work_goes_back_to_the_thread_that_had_it
+    seen = Queue.new
+    a = Object.new
+    b = Object.new
+
+    threads = [consumer(:first, seen)]
+    @queue << a
+    assert_equal [:first, a], seen.pop
+    wait_idle 1
+
+    # the most recently idle thread takes new work
+    threads << consumer(:second, seen)
+    @queue << b
+    assert_equal [:second, b], seen.pop
+    wait_idle 2
+
+    # :second is idle most recently, but a goes to the thread that had it
+    @queue << a
+    assert_equal [:first, a], seen.pop
+    wait_idle 2
+
+    @queue << b
+    assert_equal [:second, b], seen.pop
+  ensure
+    @queue << :done << :done
+    threads.each(&:join) if threads
+  end
+
+  def test_only_the_id_of_the_last_work_is_kept
+    seen = Queue.new
+    a = Object.new
+
+    threads = [consumer(:first, seen), consumer(:second, seen)]
+    100.times do
+      @queue << a
+      seen.pop
+      wait_idle 2
+    end
+
+    idle = @queue.instance_variable_get(:@idle)
+    assert_operator idle.size, :<=, 5
+    refute idle.any? { |w| w.last.equal?(a) }
+  ensure
+    @queue << :done << :done
+    threads.each(&:join) if threads
+  end
+
+  def test_queued_work_is_taken_by_any_thread
+    seen = Queue.new
+
+    @queue << 1
+    thread = consumer(:any, seen)
+    assert_equal [:any, 1], seen.pop
+
+    @queue << 2
+    assert_equal [:any, 2], seen.pop
+  ensure
+    @queue << :done
+    thread.join if thread
+  end
+end
@@ -338,6 +338,33 @@ class TestBinderJRuby < TestBinderBase
     assert_equal keystore, ssl_context_for_binder.keystore
     assert_equal ssl_cipher_list, ssl_context_for_binder.ssl_cipher_list
   end
+
+  def test_binder_parses_jruby_ssl_session_options
+    @binder.parse ["ssl://127.0.0.1:0?#{ssl_query}&ssl_session_cache_size=100&ssl_session_timeout=300"], @events
+
+    assert_equal 100, ssl_context_for_binder.ssl_session_cache_size
+    assert_equal 300, ssl_context_for_binder.ssl_session_timeout
+    assert @binder.ssl?
+  ensure
+    @binder.close_listeners
+  end
+
+  def test_binder_parses_jruby_direct_io
+    @binder.parse ["ssl://127.0.0.1:0?#{ssl_query}&direct_io=true"], @events
+
+    assert ssl_context_for_binder.direct_io
+  ensure
+    @binder.close_listeners
+  end
+
+  def test_binder_parses_jruby_tls_options
+    @binder.parse ["ssl://127.0.0.1:0?#{ssl_query}&no_tlsv1_3=true&alpn_protocols=h2,http/1.1"], @events
+
+    assert ssl_context_for_binder.no_tlsv1_3
+    assert_equal %w[h2 http/1.1], ssl_context_for_binder.alpn_protocols
+  ensure
+    @binder.close_listeners
+  end
 end if ::Puma::IS_JRUBY
 
 class TestBinderMRI < TestBinderBase
@@ -103,6 +103,44 @@ class TestConfigFile < TestConfigFileBase
     assert_match "verify_mode=peer", ssl_binding
   end
 
+  def test_ssl_bind_with_session_options
+    skip_unless :jruby
+
+    conf = Puma::Configuration.new do |c|
+      c.ssl_bind "0.0.0.0", "9292", {
+        keystore: "/path/to/keystore",
+        keystore_pass: "password",
+        ssl_session_cache_size: 100,
+        ssl_session_timeout: 300,
+      }
+    end
+
+    conf.load
+
+    ssl_binding = conf.options[:binds].first
+    assert_match "ssl_session_cache_size=100", ssl_binding
+    assert_match "ssl_session_timeout=300", ssl_binding
+  end
+
+  def test_ssl_bind_with_tls_options
+    skip_unless :jruby
+
+    conf = Puma::Configuration.new do |c|
+      c.ssl_bind "0.0.0.0", "9292", {
+        keystore: "/path/to/keystore",
+        keystore_pass: "password",
+        no_tlsv1_3: true,
+        alpn_protocols: %w[h2 http/1.1],
+      }
+    end
+
+    conf.load
+
+    ssl_binding = conf.options[:binds].first
+    assert_match "no_tlsv1_3=true", ssl_binding
+    assert_match "alpn_protocols=h2,http/1.1", ssl_binding
+  end
+
   def test_lowlevel_error_handler_DSL
     conf = Puma::Configuration.new do |c|
       c.load "test/config/app.rb"
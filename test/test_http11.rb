@@ -208,4 +208,135 @@ class Http11ParserTest < Minitest::Test
 
     assert_equal "Strip This", req["HTTP_X_STRIP_ME"]
   end
+
+  def test_common_headers_are_normalized
+    parser = Puma::HttpParser.new
+    req = {}
+    http = "GET / HTTP/1.1\r\nhost: example.com\r\nACCEPT-encoding: gzip\r\nAccept-Encoding: br\r\nContent-Type: text/plain\r\n\r\n"
+
+    parser.execute(req, http, 0)
+
+    assert_equal "example.com", req["HTTP_HOST"]
+    assert_equal "gzip, br", req["HTTP_ACCEPT_ENCODING"]
+    assert_equal "text/plain", req["CONTENT_TYPE"]
+    assert_nil req["HTTP_CONTENT_TYPE"]
+  end
+
+  def test_parse_request_in_pieces
+    parser = Puma::HttpParser.new
+    req = {}
+    http = "GET /forums/1?page=1 HTTP/1.1\r\nHost: example.com\r\nX-Split-Header: value\r\n\r\n"
+    buffer = +""
+    nread = 0
+
+    http.each_char.each_slice(5) do |piece|
+      buffer << piece.join
+      nread = parser.execute(req, buffer, nread)
+    end
+
+    assert parser.finished?
+    assert_equal http.length, nread
+    assert_equal '/forums/1', req['REQUEST_PATH']
+    assert_equal 'page=1', req['QUERY_STRING']
+    assert_equal 'example.com', req['HTTP_HOST']
+    assert_equal 'value', req['HTTP_X_SPLIT_HEADER']
+  end
+
+  def test_request_line_values_share_the_buffer
+    skip_unless :jruby
+    parser = Puma::HttpParser.new
+    req = {}
+    http = "GET /forums/1?page=1#top HTTP/1.1\r\nHost: example.com\r\n\r\n"
+
+    parser.execute(req, http, 0)
+
+    assert parser.finished?
+    assert_equal 'GET', req['REQUEST_METHOD']
+    assert_equal 'example.com', req['HTTP_HOST']
+
+    # the keys are there for key?, fetch and each, as Rack::Lint expects
+    %w[REQUEST_URI REQUEST_PATH QUERY_STRING FRAGMENT HTTP_VERSION].each do |key|
+      assert req.key?(key), key
+    end
+    assert_equal 'page=1', req.fetch('QUERY_STRING')
+    assert_includes req.to_a, ['REQUEST_PATH', '/forums/1']
+
+    assert_equal '/forums/1?page=1', req['REQUEST_URI']
+    assert_equal 'top', req['FRAGMENT']
+    assert_equal 'HTTP/1.1', req['HTTP_VERSION']
+    assert_nil req.default_proc
+
+    # values share the request buffer, writing to one copies it first
+    req['REQUEST_PATH'] << '/edit'
+    assert_equal '/forums/1/edit', req['REQUEST_PATH']
+    assert_equal 'page=1', req['QUERY_STRING']
+    assert_equal "GET /forums/1?page=1#top HTTP/1.1\r\nHost: example.com\r\n\r\n", http
+
+    parser.reset
+    req = {}
+    parser.execute(req, "GET http://example.com HTTP/1.1\r\n\r\n", 0)
+
+    assert_equal 'http://example.com', req['REQUEST_URI']
+    assert_nil req['REQUEST_PATH']
+  end
+
+  def test_stats
+    skip_unless :jruby
+    before = Puma::HttpParser.stats
+    http = "GET / HTTP/1.1\r\nHost: example.com\r\n\r\n"
+
+    Puma::HttpParser.new.execute({}, http, 0)
+
+    after = Puma::HttpParser.stats
+    assert_operator after[:http_parser_calls], :>, before[:http_parser_calls]
+    assert_operator after[:http_parser_bytes], :>=, before[:http_parser_bytes] + http.bytesize
+  end
+
+  def test_chunked_decoder
+    decoder = Puma::ChunkedDecoder.new
+    body = StringIO.new
+    data = "5;ext=1\r\nHello\r\n7\r\nChunked\r\n0\r\nX-Trailer: a\r\n\r\nGET / HTTP/1.1\r\n"
+
+    rest = nil
+    data.each_char.with_index do |c, i|
+      next unless decoder.decode(c, body)
+      rest = data[(i + 1)..-1]
+      break
+    end
+
+    assert_equal "HelloChunked", body.string
+    assert_equal "GET / HTTP/1.1\r\n", rest
+
+    decoder.reset
+    body = StringIO.new
+    assert_equal "GET / HTTP/1.1\r\n", decoder.decode(data, body)
+    assert_equal "HelloChunked", body.string
+  end
+
+  def test_chunked_decoder_rejects_invalid_bodies
+    ["x\r\n", "5\r\nHelloX\r\n", "5\n", "f" * 17 + "\r\n", "1;" + "a" * 5000].each do |data|
+      assert_raises(Puma::HttpParserError) do
+        Puma::ChunkedDecoder.new.decode data, StringIO.new
+      end
+    end
+  end
+
+  def test_header_values_are_independent_of_buffer
+    parser = Puma::HttpParser.new
+    req = {}
+    buffer = +"GET / HTTP/1.1\r\nHost: example.com\r\nX-Repeat: one\r\n"
+
+    nread = parser.execute(req, buffer, 0)
+    buffer << "X-Repeat: two\r\n\r\n"
+    parser.execute(req, buffer, nread)
+
+    assert parser.finished?
+    assert_equal "one, two", req["HTTP_X_REPEAT"]
+
+    req["HTTP_HOST"] << ":8080"
+    buffer << "x" * 1024
+
+    assert_equal "example.com:8080", req["HTTP_HOST"]
+    assert buffer.start_with?("GET / HTTP/1.1\r\nHost: example.com\r\n")
+  end
 end
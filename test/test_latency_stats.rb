@@ -0,0 +1,62 @@
+require_relative "helper"
+
+require "puma/latency_stats"
+
+class TestLatencyStats < Minitest::Test
+  parallelize_me!
+
+  Client = Struct.new(:started_at, :queue_time)
+
+  def setup
+    @latency = Puma::LatencyStats.new
+  end
+
+  def test_empty
+    stats = @latency.stats
+
+    assert_equal Puma::LatencyStats::BUCKETS_MS, stats[:buckets_ms]
+    [:buffer, :queue, :service].each do |phase|
+      assert_equal 0, stats[phase][:count]
+      assert_equal [0] * 14, stats[phase][:buckets]
+    end
+  end
+
+  def test_record_splits_request_into_phases
+    # read for 3ms, queued for 20ms, served in 400ms
+    @latency.record Client.new(10.0, 0.02), 10.023, 10.423
+
+    stats = @latency.stats
+
+    assert_equal 1, stats[:buffer][:buckets][2]
+    assert_in_delta 3, stats[:buffer][:sum_ms], 0.01
+    assert_equal 1, stats[:queue][:buckets][4]
+    assert_in_delta 20, stats[:queue][:sum_ms], 0.01
+    assert_equal 1, stats[:service][:buckets][8]
+    assert_in_delta 400, stats[:service][:sum_ms], 0.01
+  end
+
+  def test_slower_than_every_bucket
+    @latency.record Client.new(0.0, 0.0), 0.0, 60.0
+
+    assert_equal 1, @latency.stats[:service][:buckets].last
+  end
+
+  def test_merge
+    other = Puma::LatencyStats.new
+    @latency.record Client.new(0.0, 0.0), 0.0, 0.0005
+    other.record Client.new(0.0, 0.0), 0.0, 0.0008
+    other.record Client.new(0.0, 0.0), 0.0, 0.3
+
+    merged = Puma::LatencyStats.merge [@latency.stats, nil, other.stats]
+
+    assert_equal 3, merged[:service][:count]
+    assert_in_delta 301.3, merged[:service][:sum_ms], 0.01
+    assert_equal 2, merged[:service][:buckets][0]
+    assert_equal 1, merged[:service][:buckets][8]
+    assert_equal 3, merged[:queue][:buckets][0]
+  end
+
+  def test_merge_nothing
+    assert_nil Puma::LatencyStats.merge([nil, nil])
+  end
+end
@@ -1,6 +1,9 @@
 require_relative "helper"
 
 require "puma/minissl"
+require "puma/puma_http11"
+require "openssl"
+require "socket"
 
 class TestMiniSSL < Minitest::Test
 
@@ -11,6 +14,242 @@ class TestMiniSSL < Minitest::Test
       exception = assert_raises(ArgumentError) { ctx.keystore = "/no/such/keystore" }
       assert_equal("No such keystore file '/no/such/keystore'", exception.message)
     end
+
+    def test_engine_reloads_modified_keystore
+      keystore = Tempfile.new %w[keystore .jks]
+      keystore.binmode
+      keystore.write File.binread(File.expand_path("../../examples/puma/keystore.jks", __FILE__))
+      keystore.close
+
+      ctx = Puma::MiniSSL::Context.new
+      ctx.keystore = keystore.path
+      ctx.keystore_pass = 'blahblah'
+      ctx.verify_mode = Puma::MiniSSL::VERIFY_NONE
+      Puma::MiniSSL::Engine.server ctx
+
+      File.binwrite keystore.path, "not a keystore"
+      File.utime Time.now + 10, Time.now + 10, keystore.path
+      assert_raises(Java::JavaIo::IOException) { Puma::MiniSSL::Engine.server ctx }
+    ensure
+      keystore.unlink if keystore
+    end
+
+    def test_write_all_fails_when_engine_needs_to_read
+      ctx = Puma::MiniSSL::Context.new
+      ctx.keystore = File.expand_path "../../examples/puma/keystore.jks", __FILE__
+      ctx.keystore_pass = 'blahblah'
+      ctx.verify_mode = Puma::MiniSSL::VERIFY_NONE
+
+      # no ClientHello yet, wrapping produces nothing until the engine unwraps
+      engine = Puma::MiniSSL::Engine.server ctx
+
+      error = Timeout.timeout(5) do
+        assert_raises(IOError) { engine.write_all ["hello"] }
+      end
+      assert_match(/NEED_UNWRAP/, error.message)
+    end
+
+    def test_delegated_tasks_finish_in_the_background
+      ctx = Puma::MiniSSL::Context.new
+      ctx.keystore = File.expand_path "../../examples/puma/keystore.jks", __FILE__
+      ctx.keystore_pass = 'blahblah'
+      ctx.verify_mode = Puma::MiniSSL::VERIFY_NONE
+
+      server = TCPServer.new "127.0.0.1", 0
+      client = Thread.new do
+        client_ctx = OpenSSL::SSL::SSLContext.new
+        client_ctx.verify_mode = OpenSSL::SSL::VERIFY_NONE
+        ssl = OpenSSL::SSL::SSLSocket.new TCPSocket.new("127.0.0.1", server.addr[1]), client_ctx
+        ssl.connect
+        ssl.write "hello"
+        ssl.close
+      end
+
+      io = server.accept
+      socket = Puma::MiniSSL::Socket.new io, Puma::MiniSSL::Engine.server(ctx)
+      done_r, done_w = IO.pipe
+      socket.delegate_tasks { done_w << "*" }
+
+      data = nil
+      until data
+        begin
+          data = socket.read_nonblock 1024
+        rescue IO::WaitReadable
+          ready, = IO.select [io, done_r], nil, nil, 5
+          flunk "handshake stalled" unless ready
+          done_r.read 1 if ready.include? done_r
+        end
+      end
+
+      assert_equal "hello", data
+      client.join
+    ensure
+      io.close if io
+      server.close if server
+    end
+
+    def test_alpn_protocol_is_negotiated
+      ctx = Puma::MiniSSL::Context.new
+      ctx.keystore = File.expand_path "../../examples/puma/keystore.jks", __FILE__
+      ctx.keystore_pass = 'blahblah'
+      ctx.verify_mode = Puma::MiniSSL::VERIFY_NONE
+      ctx.alpn_protocols = %w[h2 http/1.1]
+
+      server = TCPServer.new "127.0.0.1", 0
+      client = Thread.new do
+        client_ctx = OpenSSL::SSL::SSLContext.new
+        client_ctx.verify_mode = OpenSSL::SSL::VERIFY_NONE
+        client_ctx.alpn_protocols = %w[http/1.1]
+        ssl = OpenSSL::SSL::SSLSocket.new TCPSocket.new("127.0.0.1", server.addr[1]), client_ctx
+        ssl.connect
+        ssl.write "hello"
+        ssl.close
+      end
+
+      io = server.accept
+      socket = Puma::MiniSSL::Socket.new io, Puma::MiniSSL::Engine.server(ctx)
+
+      assert_equal "hello", socket.readpartial(1024)
+      assert_equal "http/1.1", socket.alpn_protocol
+      client.join
+    ensure
+      io.close if io
+      server.close if server
+    end
+
+    def test_alpn_protocol_is_nil_without_alpn_protocols
+      ctx = Puma::MiniSSL::Context.new
+      ctx.keystore = File.expand_path "../../examples/puma/keystore.jks", __FILE__
+      ctx.keystore_pass = 'blahblah'
+      ctx.verify_mode = Puma::MiniSSL::VERIFY_NONE
+
+      assert_nil Puma::MiniSSL::Engine.server(ctx).alpn_protocol
+    end
+
+    def test_no_tlsv1_3_takes_strings
+      ctx = Puma::MiniSSL::Context.new
+
+      ctx.no_tlsv1_3 = 'false'
+      assert_equal false, ctx.no_tlsv1_3
+      ctx.no_tlsv1_3 = 'true'
+      assert_equal true, ctx.no_tlsv1_3
+    end
+
+    def test_direct_io_round_trip
+      ctx = Puma::MiniSSL::Context.new
+      ctx.keystore = File.expand_path "../../examples/puma/keystore.jks", __FILE__
+      ctx.keystore_pass = 'blahblah'
+      ctx.verify_mode = Puma::MiniSSL::VERIFY_NONE
+
+      # more than the socket buffers hold, so writing has to wait for the client
+      body = "x" * (16 * 1024 * 1024)
+
+      server = TCPServer.new "127.0.0.1", 0
+      client = Thread.new do
+        client_ctx = OpenSSL::SSL::SSLContext.new
+        client_ctx.verify_mode = OpenSSL::SSL::VERIFY_NONE
+        ssl = OpenSSL::SSL::SSLSocket.new TCPSocket.new("127.0.0.1", server.addr[1]), client_ctx
+        ssl.connect
+        ssl.write "hello"
+        sleep 0.5
+        received = ssl.read body.bytesize
+        ssl.close
+        received
+      end
+
+      io = server.accept
+      socket = Puma::MiniSSL::Socket.new io, Puma::MiniSSL::Engine.server(ctx)
+      assert socket.direct_io!
+
+      Timeout.timeout(30) do
+        assert_equal "hello", socket.readpartial(1024)
+        assert_equal body.bytesize, socket.write_all([body[0, 1024], body[1024..-1]])
+        assert_equal body, client.value
+        assert_raises(EOFError) { socket.readpartial(1024) }
+      end
+    ensure
+      io.close if io
+      server.close if server
+    end
+
+    def test_engine_stats_count_handshakes
+      ctx = Puma::MiniSSL::Context.new
+      ctx.keystore = File.expand_path "../../examples/puma/keystore.jks", __FILE__
+      ctx.keystore_pass = 'blahblah'
+      ctx.verify_mode = Puma::MiniSSL::VERIFY_NONE
+      before = Puma::MiniSSL::Engine.stats
+
+      server = TCPServer.new "127.0.0.1", 0
+      client = Thread.new do
+        client_ctx = OpenSSL::SSL::SSLContext.new
+        client_ctx.verify_mode = OpenSSL::SSL::VERIFY_NONE
+        ssl = OpenSSL::SSL::SSLSocket.new TCPSocket.new("127.0.0.1", server.addr[1]), client_ctx
+        ssl.connect
+        ssl.write "hello"
+        ssl.close
+      end
+
+      io = server.accept
+      socket = Puma::MiniSSL::Socket.new io, Puma::MiniSSL::Engine.server(ctx)
+      assert_equal "hello", socket.readpartial(1024)
+      client.join
+
+      after = Puma::MiniSSL::Engine.stats
+      handshakes = ->(stats) { stats[:ssl_session_hits] + stats[:ssl_session_misses] }
+      assert_equal handshakes[before] + 1, handshakes[after]
+      assert_operator after[:ssl_handshake_time_us], :>, before[:ssl_handshake_time_us]
+      assert_operator after[:ssl_wraps], :>, before[:ssl_wraps]
+      assert_operator after[:ssl_unwraps], :>, before[:ssl_unwraps]
+    ensure
+      io.close if io
+      server.close if server
+    end
+
+    def test_engine_stats_count_resumed_sessions
+      keystore = File.expand_path "../../examples/puma/keystore.jks", __FILE__
+
+      # a JDK client, its SSLContext resumes sessions with the same host and port
+      trust = java.security.KeyStore.getInstance java.security.KeyStore.getDefaultType
+      trust.load java.io.FileInputStream.new(keystore), "blahblah".to_java.toCharArray
+      tmf = javax.net.ssl.TrustManagerFactory.getInstance "SunX509"
+      tmf.init trust
+
+      [false, true].each do |no_tlsv1_3|
+        ctx = Puma::MiniSSL::Context.new
+        ctx.keystore = keystore
+        ctx.keystore_pass = 'blahblah'
+        ctx.verify_mode = Puma::MiniSSL::VERIFY_NONE
+        ctx.no_tlsv1_3 = no_tlsv1_3
+
+        client_ctx = javax.net.ssl.SSLContext.getInstance "TLS"
+        client_ctx.init nil, tmf.getTrustManagers, nil
+        server = TCPServer.new "127.0.0.1", 0
+
+        counts = (1..3).map do
+          before = Puma::MiniSSL::Engine.stats
+          client = Thread.new do
+            ssl = client_ctx.getSocketFactory.createSocket "127.0.0.1", server.addr[1]
+            ssl.getOutputStream.write "hello".to_java_bytes
+            # reading the reply also takes in a TLS 1.3 session ticket
+            ssl.getInputStream.read
+            ssl.close
+          end
+
+          io = server.accept
+          socket = Puma::MiniSSL::Socket.new io, Puma::MiniSSL::Engine.server(ctx)
+          assert_equal "hello", socket.readpartial(1024)
+          socket.write "!"
+          client.join
+          io.close
+
+          after = Puma::MiniSSL::Engine.stats
+          [:ssl_session_hits, :ssl_session_misses].map { |key| after[key] - before[key] }
+        end
+
+        assert_equal [[0, 1], [1, 0], [1, 0]], counts, "no_tlsv1_3 = #{no_tlsv1_3}"
+        server.close
+      end
+    end
   else
     def test_raises_with_invalid_key_file
       ctx = Puma::MiniSSL::Context.new
@@ -82,6 +82,17 @@ class TestPersistent < Minitest::Test
     assert_equal "Hello", @client.read(5)
   end
 
+  def test_post_then_get_in_one_chunk
+    @client << @valid_post + @valid_request
+    sz = @body[0].size.to_s
+
+    assert_equal "HTTP/1.1 200 OK\r\nX-Header: Works\r\nContent-Length: #{sz}\r\n\r\n", lines(4)
+    assert_equal "Hello", @client.read(5)
+
+    assert_equal "HTTP/1.1 200 OK\r\nX-Header: Works\r\nContent-Length: #{sz}\r\n\r\n", lines(4)
+    assert_equal "Hello", @client.read(5)
+  end
+
   def test_no_body_then_get
     @client << @valid_no_body
     assert_equal "HTTP/1.1 204 No Content\r\nX-Header: Works\r\n\r\n", lines(3)
@@ -246,4 +257,19 @@ class TestPersistent < Minitest::Test
     c2.close
   end
 
+  def test_idle_keepalive_connection_releases_thread
+    sz = @body[0].size.to_s
+
+    @client << @valid_request
+    assert_equal "HTTP/1.1 200 OK\r\nX-Header: Works\r\nContent-Length: #{sz}\r\n\r\n", lines(4)
+    assert_equal "Hello", @client.read(5)
+
+    # the connection is left with the reactor, not waited on by the only thread
+    Timeout.timeout(0.1) { sleep 0.005 until @server.pool_capacity == 1 }
+
+    @client << @valid_request
+    assert_equal "HTTP/1.1 200 OK\r\nX-Header: Works\r\nContent-Length: #{sz}\r\n\r\n", lines(4)
+    assert_equal "Hello", @client.read(5)
+  end
+
 end
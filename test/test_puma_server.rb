@@ -1,5 +1,8 @@
 require_relative "helper"
 
+require "tmpdir"
+require "fileutils"
+
 class TestPumaServer < Minitest::Test
   parallelize_me!
 
@@ -340,6 +343,19 @@ EOF
     assert_equal "HTTP/1.1 408 Request Timeout\r\n", data
   end
 
+  def test_timeout_after_partial_body
+    @server.first_data_timeout = 1
+    server_run
+
+    sock = send_http "POST / HTTP/1.1\r\nHost: test.com\r\nContent-Type: text/plain\r\nContent-Length: 5\r\n\r\n"
+    sleep 0.2
+    sock << "ab"
+
+    data = Timeout.timeout(10) { sock.gets }
+
+    assert_equal "HTTP/1.1 408 Request Timeout\r\n", data
+  end
+
   def test_timeout_data_no_queue
     @server = Puma::Server.new @app, @events, queue_requests: false
     test_timeout_in_data_phase
@@ -633,6 +649,233 @@ EOF
     assert_equal "hello", body
   end
 
+  def test_chunked_request_with_extensions_and_trailer
+    body = nil
+    server_run app: ->(env) {
+      body = env['rack.input'].read
+      [200, {}, [""]]
+    }
+
+    data = send_http_and_read "GET / HTTP/1.1\r\nConnection: close\r\nTransfer-Encoding: chunked\r\n\r\n1;name=value\r\nh\r\n4\r\nello\r\n0\r\nX-Checksum: abc\r\n\r\n"
+
+    assert_equal "HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 0\r\n\r\n", data
+    assert_equal "hello", body
+  end
+
+  def test_chunked_request_with_invalid_size
+    server_run app: ->(env) { [200, {}, [""]] }
+
+    data = send_http_and_read "GET / HTTP/1.1\r\nConnection: close\r\nTransfer-Encoding: chunked\r\n\r\nz\r\nh\r\n0\r\n\r\n"
+
+    assert_match(/\AHTTP\/1.1 400 Bad Request/, data)
+  end
+
+  def test_max_body_in_memory
+    @server = Puma::Server.new @app, @events, max_body_in_memory: 256 * 1024
+    input = nil
+    server_run app: ->(env) {
+      input = env['rack.input']
+      [200, {}, [env['rack.input'].read.bytesize.to_s]]
+    }
+
+    sock = send_http "PUT / HTTP/1.1\r\nConnection: close\r\nContent-Length: 204800\r\n\r\n"
+    sock << "a" * 204800
+
+    assert_equal "HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 6\r\n\r\n204800", sock.read
+    assert_kind_of StringIO, input
+  end
+
+  def test_body_tempfile_dir
+    dir = Dir.mktmpdir
+    @server = Puma::Server.new @app, @events, max_body_in_memory: 1024, body_tempfile_dir: dir
+    path = nil
+    server_run app: ->(env) {
+      path = env['rack.input'].path
+      [200, {}, [env['rack.input'].read.bytesize.to_s]]
+    }
+
+    sock = send_http "PUT / HTTP/1.1\r\nConnection: close\r\nContent-Length: 102400\r\n\r\n"
+    sock << "a" * 102400
+
+    assert_equal "HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 6\r\n\r\n102400", sock.read
+    assert_equal dir, File.dirname(path)
+  ensure
+    FileUtils.remove_entry dir if dir
+  end
+
+  def test_reactor_threads
+    @server = Puma::Server.new @app, @events, reactor_threads: 3
+    server_run app: ->(env) { [200, {}, [env['PATH_INFO']]] }
+
+    reactors = Thread.list.map(&:name).grep(/\Apuma reactor/)
+    assert_equal ["puma reactor", "puma reactor 1", "puma reactor 2"], reactors.sort
+
+    # half a request each, so every connection is buffered by a reactor
+    socks = (1..6).map { |i| send_http "GET /#{i} HTTP/1.1\r\n" }
+    socks.each { |sock| sock << "Connection: close\r\n\r\n" }
+
+    socks.each_with_index do |sock, i|
+      assert_equal "HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 2\r\n\r\n/#{i + 1}", sock.read
+    end
+  end
+
+  def test_request_line_env_keys
+    server_run app: ->(env) {
+      [200, {}, ["#{env.fetch('QUERY_STRING')} #{env.fetch('REQUEST_PATH')}"]]
+    }
+
+    data = send_http_and_read "GET /a?b=c HTTP/1.0\r\n\r\n"
+
+    assert_equal "HTTP/1.0 200 OK\r\nContent-Length: 6\r\n\r\nb=c /a", data
+  end
+
+  def test_latency_stats_queue_and_service_time
+    @server.max_threads = 1
+    serving = Queue.new
+    server_run app: ->(env) {
+      if env['PATH_INFO'] == '/slow'
+        serving << true
+        sleep 0.2
+      end
+      [200, {}, [""]]
+    }
+
+    # buffered by the reactor, then queued behind /slow for the only thread
+    queued = send_http "GET /queued HTTP/1.1\r\n"
+    slow = send_http "GET /slow HTTP/1.1\r\nConnection: close\r\n\r\n"
+    serving.pop
+    queued << "Connection: close\r\n\r\n"
+
+    slow.read
+    queued.read
+
+    latency = @server.stats[:latency]
+
+    assert_equal 2, latency[:service][:count]
+    assert_operator latency[:service][:sum_ms], :>=, 200
+    assert_operator latency[:queue][:sum_ms], :>=, 100
+  end
+
+  def test_latency_stats_leave_out_keep_alive_idle_time
+    server_run app: ->(env) { [200, {}, [""]] }
+
+    sock = send_http "GET / HTTP/1.1\r\n\r\n"
+    header sock
+    sleep 0.3
+    sock << "GET / HTTP/1.1\r\nConnection: close\r\n\r\n"
+    sock.read
+
+    latency = @server.stats[:latency]
+
+    assert_equal 2, latency[:buffer][:count]
+    assert_operator latency[:buffer][:sum_ms], :<, 100
+  end
+
+  def test_latency_stats_leave_out_hijacked_requests
+    server_run app: ->(env) {
+      if env['PATH_INFO'] == '/hijack'
+        io = env['rack.hijack'].call
+        io.write "HTTP/1.0 200 OK\r\n\r\nhijacked"
+        io.close
+      end
+      [200, {}, ["ok"]]
+    }
+
+    assert_equal "HTTP/1.0 200 OK\r\n\r\nhijacked", send_http_and_read("GET /hijack HTTP/1.0\r\n\r\n")
+    send_http_and_read "GET / HTTP/1.0\r\n\r\n"
+
+    assert_equal 1, @server.stats[:latency][:service][:count]
+  end
+
+  def test_virtual_threads_fall_back_without_support
+    skip "Virtual threads are supported" if defined?(Puma::VirtualThreads) && Puma::VirtualThreads.supported?
+
+    @server = Puma::Server.new @app, @events, virtual_threads: true
+    server_run
+
+    data = send_http_and_read "GET / HTTP/1.0\r\n\r\n"
+
+    assert_equal "HTTP/1.0 200 OK\r\nContent-Length: 4\r\n\r\nhttp", data
+    assert_match(/virtual_threads needs JRuby on JDK 21/, @events.stdout.string)
+  end
+
+  def test_streamed_request_body
+    @server = Puma::Server.new @app, @events, stream_request_body: true
+    dispatched = Queue.new
+    body = nil
+    server_run app: ->(env) {
+      dispatched << env['rack.input'].class
+      body = env['rack.input'].read(5) + env['rack.input'].read
+      [200, {}, [""]]
+    }
+
+    sock = send_http "PUT /upload HTTP/1.1\r\nConnection: close\r\nContent-Length: 10\r\n\r\nhello"
+
+    assert_equal Puma::StreamingBody, dispatched.pop
+
+    sock << "world"
+
+    assert_equal "HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 0\r\n\r\n", sock.read
+    assert_equal "helloworld", body
+  end
+
+  def test_streamed_request_body_read_clears_outbuf_at_eof
+    @server = Puma::Server.new @app, @events, stream_request_body: true
+    dispatched = Queue.new
+    reads = []
+    server_run app: ->(env) {
+      dispatched << env['rack.input'].class
+      buffer = String.new
+      while env['rack.input'].read(3, buffer)
+        reads << buffer.dup
+      end
+      reads << buffer
+      [200, {}, [""]]
+    }
+
+    sock = send_http "PUT / HTTP/1.1\r\nConnection: close\r\nContent-Length: 5\r\n\r\nhe"
+
+    assert_equal Puma::StreamingBody, dispatched.pop
+
+    sock << "llo"
+
+    assert_equal "HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 0\r\n\r\n", sock.read
+    assert_equal ["hel", "lo", ""], reads
+  end
+
+  def test_streamed_chunked_request_body_keep_alive
+    @server = Puma::Server.new @app, @events, stream_request_body: true
+    bodies = []
+    server_run app: ->(env) {
+      bodies << env['rack.input'].each.to_a
+      [200, {}, [""]]
+    }
+
+    sock = send_http "PUT / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n6\r\nhello\n\r\n5\r\nworld\r\n0\r\n\r\n" \
+      "GET / HTTP/1.1\r\nConnection: close\r\n\r\n"
+
+    assert_equal ["HTTP/1.1 200 OK", "Content-Length: 0"], header(sock)
+    assert_equal ["HTTP/1.1 200 OK", "Connection: close", "Content-Length: 0"], header(sock)
+    assert_equal [["hello\n", "world"], []], bodies
+  end
+
+  def test_streamed_request_body_left_unread_closes_connection
+    @server = Puma::Server.new @app, @events, stream_request_body: ['/upload']
+    inputs = []
+    server_run app: ->(env) {
+      inputs << env['rack.input'].class
+      [200, {}, [""]]
+    }
+
+    sock = send_http "PUT /upload HTTP/1.1\r\nContent-Length: 10\r\n\r\nhello"
+    assert_equal ["HTTP/1.1 200 OK", "Connection: close", "Content-Length: 0"], header(sock)
+
+    data = send_http_and_read "PUT /other HTTP/1.1\r\nConnection: close\r\nContent-Length: 5\r\n\r\nhello"
+    assert_equal "HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 0\r\n\r\n", data
+
+    assert_equal [Puma::StreamingBody, StringIO], inputs
+  end
+
   def test_chunked_keep_alive
     body = nil
     server_run app: ->(env) {
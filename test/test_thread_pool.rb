@@ -87,19 +87,16 @@ class TestThreadPool < Minitest::Test
   end
 
   def test_trim_leaves_min
-    pool = new_pool(1, 2) do |work|
-      @work_mutex.synchronize do
-        @work_done.signal
-      end
-    end
+    finish = false
+    pool = new_pool(1, 2) { Thread.pass until finish }
 
     pool << 1
     pool << 2
 
-    @work_mutex.synchronize do
-      @work_done.wait(@work_mutex, 5)
-      assert_equal 2, pool.spawned
-    end
+    assert_equal 2, pool.spawned
+
+    finish = true
+    pause
 
     pool.trim
     pause
@@ -171,6 +168,108 @@ class TestThreadPool < Minitest::Test
     assert_equal 1, pool.spawned
   end
 
+  def test_served
+    pool = new_pool(0, 2) { sleep 0.01 }
+
+    pool << 1
+    pool << 2
+
+    Thread.pass until pool.served[0] == 2
+    count, seconds = pool.served
+
+    assert_equal 2, count
+    assert_operator seconds, :>=, 0.02
+  end
+
+  def test_wait_until_not_full_checks_again_after_setting_the_flag
+    pool = new_pool(1, 1)
+    Thread.pass until pool.waiting == 1
+
+    # the first check sees the thread busy, as if it went idle right after
+    checks = 0
+    pool.define_singleton_method(:waiting) { (checks += 1) == 1 ? 0 : super() }
+    waits = 0
+    not_full = pool.instance_variable_get(:@not_full)
+    not_full.define_singleton_method(:wait) { |*args| waits += 1; super(*args) }
+
+    assert_equal 0, pool.wait_until_not_full
+    assert_equal 0, waits
+  end
+
+  def test_auto_size_starts_at_max
+    finish = false
+    pool = new_pool(0, 4) { sleep 0.01 until finish }
+    pool.auto_size! 0.05, 0.2
+
+    assert_equal 4, pool.limit
+
+    4.times { |i| pool << i }
+    assert_equal 4, pool.spawned
+  ensure
+    finish = true
+  end
+
+  def test_auto_size_grows_with_queue_latency
+    finish = false
+    pool = new_pool(1, 4) { sleep 0.01 until finish }
+    pool.auto_size! 0.05, 0.2
+
+    # idle, so it shrinks to min first
+    Timeout.timeout(5) { sleep 0.05 until pool.limit == 1 }
+
+    4.times { |i| pool << i }
+    assert_equal 1, pool.spawned
+
+    Timeout.timeout(5) { sleep 0.05 until pool.spawned == 4 }
+
+    assert_equal 4, pool.limit
+    assert_operator pool.sizing[:queue_latency_ms], :>, 50
+    assert_operator pool.sizing[:thread_limit_change], :>, 0
+  ensure
+    finish = true
+  end
+
+  def test_auto_size_spawns_for_the_backlog_only
+    finish = false
+    pool = new_pool(1, 4) { sleep 0.01 until finish }
+    pool.auto_size! 0.001, 60
+    # the sizer runs once right away, then not for a minute
+    Timeout.timeout(5) { sleep 0.01 until pool.sizing }
+    pool.instance_variable_set :@limit, 1
+
+    pool << 1
+    pool << 2
+    Timeout.timeout(5) { sleep 0.01 until pool.backlog == 1 && pool.waiting == 0 }
+
+    # a long service time, so the limit goes straight to max
+    pool.instance_variable_set :@service_time, 1.0
+    # as when the server waits for a free thread, new threads take the lock
+    # before they pop, so none of them can take the work during adjust_size
+    pool.instance_variable_set :@not_full_waiting, true
+    sleep 0.01
+    pool.adjust_size
+
+    assert_equal 4, pool.limit
+    assert_equal 2, pool.spawned
+  ensure
+    finish = true
+  end
+
+  def test_auto_size_shrinks_when_idle
+    finish = false
+    pool = new_pool(1, 4) { sleep 0.01 until finish }
+    pool.auto_size! 0.05, 0.2
+
+    4.times { |i| pool << i }
+    Timeout.timeout(5) { sleep 0.05 until pool.spawned == 4 }
+
+    finish = true
+
+    Timeout.timeout(5) { sleep 0.05 until pool.spawned == 1 }
+    assert_equal 1, pool.limit
+    assert_equal 0.0, pool.sizing[:queue_latency_ms]
+  end
+
   def test_cleanliness
     values = []
     n = 100
@@ -240,6 +339,22 @@ class TestThreadPool < Minitest::Test
     assert_equal 0, pool.spawned
   end
 
+  def test_virtual_threads
+    skip_unless :jruby
+    require "puma/puma_http11"
+    skip "Virtual threads need JDK 21 or later" unless Puma::VirtualThreads.supported?
+
+    saw = Queue.new
+    @pool = Puma::ThreadPool.new(0, 2, virtual_threads: true) do |work|
+      saw << [work, Java::JavaLang::Thread.currentThread.isVirtual]
+    end
+
+    @pool << 1
+
+    assert_equal [1, true], saw.pop
+    assert_equal 1, @pool.spawned
+  end
+
   def test_force_shutdown_immediately
     finish = false
     rescued = false
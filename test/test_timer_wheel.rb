@@ -0,0 +1,88 @@
+require_relative "helper"
+
+require "puma/timer_wheel"
+
+class TestTimerWheel < Minitest::Test
+  parallelize_me!
+
+  NOW = Time.at(1_000_000)
+
+  def setup
+    @wheel = Puma::TimerWheel.new 0.1, 8, NOW
+  end
+
+  def expire(seconds)
+    expired = []
+    @wheel.expire(NOW + seconds) { |value| expired << value }
+    expired
+  end
+
+  def test_empty
+    assert @wheel.empty?
+    assert_nil @wheel.next_expiry
+    assert_equal [], expire(10)
+  end
+
+  def test_expires_once_deadline_passes
+    @wheel.add :a, NOW + 0.5
+    @wheel.add :b, NOW + 0.3
+
+    assert_equal 2, @wheel.size
+    assert_equal [], expire(0.2)
+    assert_equal [:b], expire(0.3)
+    assert_equal [], expire(0.4)
+    assert_equal [:a], expire(0.5)
+    assert @wheel.empty?
+  end
+
+  def test_delete
+    @wheel.add :a, NOW + 0.3
+    @wheel.add :b, NOW + 0.3
+
+    assert_equal :a, @wheel.delete(:a)
+    assert_nil @wheel.delete(:a)
+    assert_equal [:b], expire(1)
+  end
+
+  def test_add_again_moves_value
+    @wheel.add :a, NOW + 0.3
+    @wheel.add :a, NOW + 0.6
+
+    assert_equal 1, @wheel.size
+    assert_equal [], expire(0.5)
+    assert_equal [:a], expire(0.6)
+  end
+
+  def test_deadline_more_than_a_turn_away
+    # 8 slots of 0.1s make one turn 0.8s long
+    @wheel.add :far, NOW + 2.05
+    @wheel.add :near, NOW + 0.45
+
+    assert_equal [:near], expire(0.5)
+    assert_equal [], expire(1.3)
+    assert_equal [], expire(2.0)
+    assert_equal [:far], expire(2.1)
+  end
+
+  def test_skipping_several_turns
+    @wheel.add :a, NOW + 0.2
+    @wheel.add :b, NOW + 1.5
+
+    assert_equal [:a, :b].sort, expire(60).sort
+  end
+
+  def test_past_deadline_expires_on_next_tick
+    expire 1
+    @wheel.add :late, NOW
+
+    assert_equal [:late], expire(1.1)
+  end
+
+  def test_next_expiry
+    @wheel.add :a, NOW + 0.55
+    assert_in_delta (NOW + 0.6).to_f, @wheel.next_expiry, 0.001
+
+    @wheel.add :b, NOW + 0.25
+    assert_in_delta (NOW + 0.3).to_f, @wheel.next_expiry, 0.001
+  end
+end